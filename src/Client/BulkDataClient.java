@@ -0,0 +1,75 @@
+package Client;
+
+import Communication.BulkProtocol;
+import Communication.GlobalConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ligação de dados (bulk) a um nó: só um cabeçalho pequeno por bloco, sem a serialização das mensagens
+public class BulkDataClient {
+
+    private final String ip;
+    private final int port;
+    private final SocketChannel channel;
+    private final int transferUnit;
+    private final ReentrantLock lock = new ReentrantLock();   // Um pedido de cada vez por ligação
+
+    public BulkDataClient(String ip, int port) throws IOException {
+        this.ip = ip;
+        this.port = port;
+        int proposed = GlobalConfig.getInstance().getBulkTransferUnit();
+        this.channel = SocketChannel.open();
+        this.channel.socket().setReceiveBufferSize(proposed);   // Antes de ligar, para a janela TCP poder crescer
+        this.channel.connect(new InetSocketAddress(ip, port));
+        this.channel.socket().setTcpNoDelay(true);
+        ByteBuffer preface = ByteBuffer.allocate(8);
+        preface.putInt(BulkProtocol.MAGIC).putInt(proposed).flip();
+        BulkProtocol.writeFully(channel, preface);
+        ByteBuffer accepted = ByteBuffer.allocate(4);
+        BulkProtocol.readFully(channel, accepted);
+        this.transferUnit = accepted.getInt();
+        System.out.println("Bulk connection to " + ip + ":" + port + " (transfer unit " + transferUnit + " bytes)");
+    }
+
+    // Pede um bloco e lê-o para target (com o tamanho do bloco), para ser verificado antes de ser escrito
+    // Devolve a prova de Merkle do bloco, ou null se o nó não tem o bloco
+    public byte[] receiveBlock(String fileHash, int blockId, ByteBuffer target) throws IOException {
+        int length = target.remaining();
+        lock.lock();
+        try {
+            BulkProtocol.writeFully(channel, BulkProtocol.encodeRequest(fileHash, blockId));
+            ByteBuffer header = ByteBuffer.allocate(BulkProtocol.RESPONSE_HEADER_SIZE);
+            BulkProtocol.readFully(channel, header);
+            int receivedId = header.getInt();
+            int receivedLength = header.getInt();
+            ByteBuffer proof = ByteBuffer.allocate(BulkProtocol.readProofLength(header));
+            BulkProtocol.readFully(channel, proof);
+            if (receivedLength == BulkProtocol.NOT_AVAILABLE) {
+                return null;
+            }
+            if (receivedId != blockId || receivedLength != length) {
+                throw new IOException("Unexpected block " + receivedId + " (" + receivedLength + " bytes) from " + ip + ":" + port);
+            }
+            BulkProtocol.readFully(channel, target, transferUnit);
+            return proof.array();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getTransferUnit() {
+        return transferUnit;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Could not close bulk connection: " + e.getMessage());
+        }
+    }
+}
@@ -2,77 +2,68 @@ package Client;
 
 import Communication.Command;
 import Communication.MessageWrapper;
-import Communication.CountDownLatch;
+import Communication.NodeThreads;
+import Download.BlockCodecs;
 import Download.FileBlockAnswerMessage;
+import Download.FileBlockCancelMessage;
 import Files.DownloadTaskManager;
+import Files.FileInfo;
 import Search.FileSearchResult;
+import Search.SearchReply;
+import Search.SeenQueries;
 import Search.WordSearchMessage;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 
 public class ClientManager {
+    public static final long DEFAULT_SEARCH_TIMEOUT_MILLIS = 3000;
     // Campos declarados corretamente
     private final Map<ClientThread, Boolean> clientThreads;
-    private final HashMap<String, List<FileSearchResult>> FileSearchDB;
-    private final Map<String, DownloadTaskManager> downloadThreads = new HashMap<>();
+    private final Map<String, SearchQuery> searches = new ConcurrentHashMap<>();   // Pesquisas em curso, pelo id
+    private SearchQuery lastSearch;     // Última pesquisa iniciada (getData, startDownloadThreads pelo nome)
+    private final SearchCache searchCache = new SearchCache();
+    private final SeenQueries seenQueries = new SeenQueries(10000, 60000);    // Pesquisas iniciadas ou reencaminhadas por este nó
+    private final Set<String> refreshingSearches = ConcurrentHashMap.newKeySet();    // Termos a ser atualizados em segundo plano
+    private final Map<String, DownloadTaskManager> downloadThreads = new ConcurrentHashMap<>();   // Downloads em curso
     private final List<ClientManagerListener> listeners = new ArrayList<>();
-    private CountDownLatch currentSearchLatch;
-    private String currentSearchTerm;
-    private final Queue<Runnable> queue = new LinkedList<>();
+    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
     private final List<Thread> workerThreads = new ArrayList<>();
+    private PeerConnectionPool peerConnections;   // Ligações usadas pelos downloads (ver getPeerConnections)
     private static ClientManager instance; // Campo estático
 
     public ClientManager() {
         this.clientThreads = new TreeMap<>();
-        this.FileSearchDB = new HashMap<>();
 
-        // Inicializar threads manuais
+        // Inicializar threads manuais (de plataforma ou virtuais, ver NodeThreads)
         for (int i = 0; i < 5; i++) {
-            Thread worker = new Thread(() -> {
+            Thread worker = NodeThreads.start("client-worker-" + i, () -> {
                 while (true) {
-                    Runnable task;
-                    synchronized (queue) {
-                        while (queue.isEmpty()) {
-                            try {
-                                queue.wait();
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                                return;
-                            }
-                        }
-                        task = queue.poll();
+                    try {
+                        queue.take().run();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
                     }
-                    task.run();
                 }
             });
-            worker.start();
             workerThreads.add(worker);
         }
     }
 
-    // Método sincronizado para definir a pesquisa atual
-    public synchronized void setCurrentSearch(String term, CountDownLatch latch) {
-        this.currentSearchTerm = term;
-        this.currentSearchLatch = latch;
-    }
-
-    public synchronized CountDownLatch getCurrentSearchLatch() {
-        return currentSearchLatch;
-    }
-
-    public synchronized String getCurrentSearchTerm() {
-        return currentSearchTerm;
-    }
-
     public void addClientThread(String ip, int port) {
         ClientThread newThread = new ClientThread(this, ip, port);
         synchronized (this) {
             clientThreads.put(newThread, false);
         }
+        searchCache.clear();     // O novo nó não está nos resultados guardados
     }
 
     public void removeClientThread(ClientThread clientThread) {
@@ -81,65 +72,184 @@ public class ClientManager {
         }
     }
 
+    // Ligações abertas pelo utilizador a um nó, que os downloads também podem usar
+    public synchronized List<ClientThread> findClientThreads(String ip, int port) {
+        List<ClientThread> found = new ArrayList<>();
+        for (ClientThread clientThread : clientThreads.keySet()) {
+            if (clientThread.isConnectedTo(ip, port) && clientThread.isConnected()) {
+                found.add(clientThread);
+            }
+        }
+        return found;
+    }
+
+    // Ligação persistente ao nó para pedidos de blocos (ver PeerConnectionPool)
+    public ClientThread getPeerConnection(String ip, int port) throws IOException {
+        return getPeerConnections().getConnection(ip, port);
+    }
+
+    public void connectionClosed(ClientThread clientThread) {
+        removeClientThread(clientThread);
+        getPeerConnections().remove(clientThread);
+    }
+
+    // Criado fora do construtor: o pool guarda este ClientManager, que ainda não estaria construído
+    private synchronized PeerConnectionPool getPeerConnections() {
+        if (peerConnections == null) {
+            peerConnections = new PeerConnectionPool(this);
+        }
+        return peerConnections;
+    }
+
+    // Mantido para quem envia a pesquisa diretamente: equivale a search com o prazo por omissão
     public void sendAll(Command command, Object message) {
+        if (command == Command.WordSearchMessage && message instanceof WordSearchMessage) {
+            search((WordSearchMessage) message, DEFAULT_SEARCH_TIMEOUT_MILLIS, null);
+        }
+    }
+
+    public SearchQuery search(String term, long timeoutMillis, Consumer<FileSearchResult> onResult) {
+        return search(new WordSearchMessage(term), timeoutMillis, onResult);
+    }
+
+    // Cada pesquisa tem o seu id, por isso várias podem correr ao mesmo tempo
+    // Os resultados chegam ao callback à medida que cada nó responde; a pesquisa termina quando todos responderam
+    // ou ao fim de timeoutMillis. Um termo pesquisado há pouco é respondido logo a partir da SearchCache
+    public SearchQuery search(WordSearchMessage message, long timeoutMillis, Consumer<FileSearchResult> onResult) {
+        String term = message.getSearchTerm();
+        SearchCache.Freshness freshness = searchCache.getFreshness(term);
+        Map<String, List<FileSearchResult>> cached = freshness == null ? null : searchCache.get(term);
+        SearchQuery query;
+        if (cached == null) {
+            query = broadcast(message, timeoutMillis, onResult);
+            query.getCompletion().thenAccept(results -> searchCache.put(term, results));
+        } else {
+            if (freshness == SearchCache.Freshness.STALE) {
+                refreshSearch(term, timeoutMillis);
+            }
+            List<FileSearchResult> results = new ArrayList<>();
+            cached.values().forEach(results::addAll);
+            query = new SearchQuery(message, 1, onResult);
+            query.addReply(results.toArray(new FileSearchResult[0]));     // Entregue ao callback e terminada já
+        }
         synchronized (this) {
-            if (!(message instanceof WordSearchMessage)) {
-                return;
+            lastSearch = query;
+        }
+        return query;
+    }
+
+    // Refaz a pesquisa sem callback, só para atualizar a cache (uma de cada vez por termo)
+    private void refreshSearch(String term, long timeoutMillis) {
+        String key = SearchCache.normalize(term);
+        if (!refreshingSearches.add(key)) {
+            return;
+        }
+        broadcast(new WordSearchMessage(term), timeoutMillis, null).getCompletion().whenComplete((results, error) -> {
+            if (results != null) {
+                searchCache.put(term, results);
             }
+            refreshingSearches.remove(key);
+        });
+    }
 
-            WordSearchMessage searched = (WordSearchMessage) message;
-            long activeNodes = clientThreads.values().stream().filter(status -> !status).count();
-            setCurrentSearch(searched.getSearchTerm(), new CountDownLatch((int) activeNodes));
+    // Devolve false se a pesquisa já passou por este nó (chegou por outro caminho ou foi iniciada aqui)
+    public boolean markSearchSeen(String queryId) {
+        return seenQueries.markSeen(queryId);
+    }
 
+    // Pesquisa recebida de outro nó e reencaminhada aos nós a que este está ligado (sem passar pela cache,
+    // que guarda só as pesquisas do utilizador); os resultados vão para o callback, para voltarem a quem a enviou
+    public SearchQuery forwardSearch(WordSearchMessage message, long timeoutMillis, Consumer<FileSearchResult> onResult) {
+        return broadcast(message, timeoutMillis, onResult);
+    }
+
+    // Envia a pesquisa a todos os nós ligados
+    private SearchQuery broadcast(WordSearchMessage message, long timeoutMillis, Consumer<FileSearchResult> onResult) {
+        seenQueries.markSeen(message.getQueryId());     // Se voltar a este nó por um ciclo, o servidor ignora-a
+        List<ClientThread> peers = new ArrayList<>();
+        SearchQuery query;
+        synchronized (this) {
             for (ClientThread clientThread : clientThreads.keySet()) {
-                Boolean status = clientThreads.get(clientThread);
-                if (status != null && !status) {
-                    synchronized (queue
-                    ) { // Bloco sincronizado na taskQueue
-                        queue.add(() -> {
-                            synchronized (clientThreads) { // Sincronização no acesso às clientThreads
-                                try {
-                                    clientThreads.replace(clientThread, true);
-                                    clientThread.sendObject(command, message);
-                                } catch (IOException | InterruptedException e) {
-                                    synchronized (ClientManager.this) {
-                                        if (currentSearchLatch != null) {
-                                            currentSearchLatch.countDown();
-                                        }
-                                    }
-                                } finally {
-                                    clientThreads.replace(clientThread, false);
-                                }
-                            }
-                        });
-                        queue.notify();
-                    }
-                } else {
-                    if (currentSearchLatch != null) {
-                        currentSearchLatch.countDown();
-                    }
+                if (clientThread.isConnected()) {     // Uma ligação pode levar várias pesquisas ao mesmo tempo
+                    peers.add(clientThread);
+                }
+            }
+            query = new SearchQuery(message, peers.size(), onResult);
+        }
+        searches.put(query.getQueryId(), query);
+        query.getCompletion().whenComplete((results, error) -> searches.remove(query.getQueryId()));
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(query::finish);
+
+        for (ClientThread clientThread : peers) {
+            queue.add(() -> {
+                // O envio é feito fora do bloco sincronizado, para não prender a thread durante o I/O
+                try {
+                    clientThread.sendObject(Command.WordSearchMessage, message);
+                } catch (IOException | InterruptedException e) {
+                    query.peerDone();     // Este nó não vai responder
                 }
+            });
+        }
+        return query;
+    }
+
+    // Nós com o protocolo anterior não devolvem o id: a resposta vai para a pesquisa em curso com o mesmo termo
+    private SearchQuery findSearch(SearchReply reply) {
+        if (reply.getQueryId() != null) {
+            return searches.get(reply.getQueryId());
+        }
+        if (reply.getResults().length == 0) {
+            return null;
+        }
+        String term = reply.getResults()[0].getWordSearchMessage().getSearchTerm();
+        for (SearchQuery query : searches.values()) {
+            if (query.getSearchTerm().equals(term)) {
+                return query;
             }
         }
+        return null;
     }
 
     public void receive(MessageWrapper message, ClientThread clientThread) {
         switch (message.getCommand()) {
             case FileSearchResult: {
-                FileSearchResult[] received = (FileSearchResult[]) message.getData();
-                for (FileSearchResult file : received) {
-                    addToFileSearchResult(file);
-                }
-                clientThreads.replace(clientThread, false);
-                if (currentSearchLatch != null) {
-                    currentSearchLatch.countDown();
+                // A versão original responde só com o array de resultados (serialização Java)
+                SearchReply reply = message.getData() instanceof SearchReply ? (SearchReply) message.getData()
+                        : new SearchReply(null, (FileSearchResult[]) message.getData());
+                SearchQuery query = findSearch(reply);
+                if (query != null) {     // null: a pesquisa já terminou (prazo) ou não é conhecida
+                    query.addReply(reply.getResults(), reply.isComplete());
+                    notifyListeners();
                 }
                 break;
             }
             case DownloadResult: {
                 FileBlockAnswerMessage received = (FileBlockAnswerMessage) message.getData();
                 System.out.println("Cliente received block: " + received.getBlockId());
-                downloadThreads.get(received.getDtmUID()).addFileblock(received.getBlockId(), received);
+                clientThread.releaseRequestSlot(received.getDtmUID() + ":" + received.getBlockId());
+                DownloadTaskManager dtm = downloadThreads.get(received.getDtmUID());
+                // O tamanho descomprimido vem do outro nó: nunca mais do que o bloco pedido
+                int blockLength = dtm != null ? dtm.getBlockLength(received.getBlockId()) : FileInfo.MAX_BLOCK_SIZE;
+                try {
+                    received = BlockCodecs.decompress(received, clientThread.getPeerKey(), blockLength);
+                } catch (IOException e) {
+                    // O bloco volta a ser pedido quando o prazo do pedido acabar
+                    System.out.println("Could not decompress block " + received.getBlockId() + ": " + e.getMessage());
+                    break;
+                }
+                if (dtm != null) {
+                    dtm.addFileblock(received.getBlockId(), received, clientThread);
+                }
+                break;
+            }
+            case RequestRefused: {
+                // O nó não tinha créditos para o pedido: o bloco volta à fila e o nó recebe menos pedidos durante algum tempo
+                FileBlockCancelMessage refused = (FileBlockCancelMessage) message.getData();
+                clientThread.releaseRequestSlot(refused.getDtmUID() + ":" + refused.getBlockId());
+                DownloadTaskManager dtm = downloadThreads.get(refused.getDtmUID());
+                if (dtm != null) {
+                    dtm.requestRefused(refused.getBlockId(), clientThread);
+                }
                 break;
             }
             default: {
@@ -149,28 +259,17 @@ public class ClientManager {
         }
     }
 
-    public HashMap<String, List<FileSearchResult>> getData() {
-        return this.FileSearchDB;
+    // Resultados da última pesquisa iniciada, agrupados por hash
+    public synchronized HashMap<String, List<FileSearchResult>> getData() {
+        return lastSearch == null ? new HashMap<>() : new HashMap<>(lastSearch.getResults());
     }
 
-    private void addToFileSearchResult(FileSearchResult file) {
-        String fileHash = file.getFileInfo().filehash;
-        if (this.FileSearchDB.containsKey(fileHash)) {
-            this.FileSearchDB.get(fileHash).add(file);
-        } else {
-            List<FileSearchResult> newList = new ArrayList<>();
-            newList.add(file);
-            this.FileSearchDB.put(fileHash, newList);
-        }
-        notifyListeners();
+    public synchronized void resetFileSearchDB() {
+        lastSearch = null;
     }
 
-    public void resetFileSearchDB() {
-        this.FileSearchDB.clear();
-    }
-
-    public String searchFileByName(String name) {
-        for (List<FileSearchResult> fs : FileSearchDB.values()) {
+    private static String searchFileByName(Map<String, List<FileSearchResult>> results, String name) {
+        for (List<FileSearchResult> fs : results.values()) {
             if (!fs.isEmpty() && fs.get(0).getFileInfo().name.equals(name)) {
                 return fs.get(0).getFileInfo().filehash;
             }
@@ -179,9 +278,19 @@ public class ClientManager {
     }
 
     public DownloadTaskManager startDownloadThreads(String name) {
-        String fileHash = searchFileByName(name);
+        SearchQuery search;
+        synchronized (this) {
+            search = lastSearch;
+        }
+        return search == null ? null : startDownloadThreads(search, name);
+    }
+
+    // Descarrega o ficheiro com este nome a partir dos nós que o devolveram nesta pesquisa
+    public DownloadTaskManager startDownloadThreads(SearchQuery search, String name) {
+        Map<String, List<FileSearchResult>> results = search.getResults();
+        String fileHash = searchFileByName(results, name);
         if (fileHash == null) return null;
-        List<FileSearchResult> fsr = FileSearchDB.get(fileHash);
+        List<FileSearchResult> fsr = results.get(fileHash);
         if (fsr == null || fsr.isEmpty()) return null;
 
         DownloadTaskManager dtm = new DownloadTaskManager(this, fsr.get(0).getFileInfo(), fsr);
@@ -190,6 +299,11 @@ public class ClientManager {
         return dtm;
     }
 
+    // Chamado pelo DownloadTaskManager quando termina (com ou sem sucesso): respostas atrasadas passam a ser ignoradas
+    public void downloadFinished(DownloadTaskManager dtm) {
+        downloadThreads.remove(dtm.getUid());
+    }
+
     public void addListener(ClientManagerListener listener) {
         listeners.add(listener);
     }
@@ -1,50 +1,56 @@
 package Client;
 
 import Communication.Command;
-import Communication.MessageWrapper;
-import Communication.NewConnectionRequest;
+import Communication.GlobalConfig;
+import Communication.NodeThreads;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
-public class ClientThread extends Thread implements Comparable<ClientThread> {
+// Ligação a um nó com a sua thread de leitura (de plataforma ou virtual, ver NodeThreads)
+public class ClientThread implements Runnable, Comparable<ClientThread> {
     private final SocketClient socketClient;
+    private final Thread thread;
     private final String clientName;
     private final ClientManager clientManager;
     private volatile boolean isRunning = true;
+    private final String ip;
+    private final int port;
+
+    // Janela de pedidos de blocos sem resposta nesta ligação (pipelining), nunca maior do que os créditos do servidor
+    private final Semaphore requestWindow;
+    private final int requestWindowSize;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
 
     public ClientThread(ClientManager clientManager, String ip, int port) {
         this.clientManager = clientManager;
+        this.ip = ip;
+        this.port = port;
         this.socketClient = new SocketClient(ip, port);
         this.clientName = UUID.randomUUID().toString();
 
-        // Envia NewConnectionRequest após conectar
+        // Liga-se e faz o handshake (NewConnectionRequest/ConnectionAck)
         try {
             socketClient.startSocket();
-            // Envia mensagem de pedido de conexão
-            socketClient.sendObject(
-                    Command.ConnectionRequest,
-                    new NewConnectionRequest(socketClient.getLocalIP(), socketClient.getLocalPort())
-            );
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             throw new RuntimeException("Falha ao enviar NewConnectionRequest", e);
         }
+        int window = GlobalConfig.getInstance().getRequestWindow();
+        int credits = socketClient.getGrantedCredits();
+        this.requestWindowSize = Math.max(1, credits > 0 ? Math.min(window, credits) : window);
+        this.requestWindow = new Semaphore(requestWindowSize);
 
-        this.start();
+        this.thread = NodeThreads.start("client-" + ip + ":" + port, this);
     }
 
 
     @Override
     public void run() {
         try {
-            // Aguarda confirmação (ConnectionAck)
-            MessageWrapper ack = socketClient.receiveObject();
-            if (ack.getCommand() != Command.ConnectionAck) {
-                throw new IOException("Conexão recusada pelo nó remoto");
-            }
-
-            System.out.println("Conexão confirmada com " + socketClient.getLocalIP() + ":" + socketClient.getLocalPort());
-
             // Processamento normal das mensagens
             while (isRunning) {
                 this.clientManager.receive(socketClient.receiveObject(), this);
@@ -52,10 +58,58 @@ public class ClientThread extends Thread implements Comparable<ClientThread> {
         } catch (InterruptedException | IOException e) {
             System.out.println("Erro na conexão: " + e.getMessage());
         }
+        isRunning = false;
+        clientManager.connectionClosed(this);
+    }
+
+    // Ocupa um lugar na janela antes de enviar um pedido de bloco; bloqueia se a janela estiver cheia
+    public void acquireRequestSlot(String requestKey) throws InterruptedException {
+        requestWindow.acquire();
+        inFlight.add(requestKey);
     }
 
-    public synchronized void sendObject(Command command, Object message) throws IOException, InterruptedException {
-        socketClient.sendObject(command, message);
+    // Vários lugares de uma vez (pedido de um intervalo de blocos): todos ou nenhum, para dois pedidos
+    // grandes não ficarem cada um com parte da janela à espera do resto
+    public void acquireRequestSlots(List<String> requestKeys) throws InterruptedException {
+        requestWindow.acquire(requestKeys.size());
+        inFlight.addAll(requestKeys);
+    }
+
+    // Liberta o lugar quando chega a resposta (ou o pedido falha); respostas repetidas não libertam duas vezes
+    public void releaseRequestSlot(String requestKey) {
+        if (inFlight.remove(requestKey)) {
+            requestWindow.release();
+        }
+    }
+
+    public int getRequestWindowSize() {
+        return requestWindowSize;
+    }
+
+    public int getAvailableRequestSlots() {
+        return requestWindow.availablePermits();
+    }
+
+    // Nós com protocolo anterior à versão 8 só recebem pedidos de um bloco
+    public boolean supportsRangeRequests() {
+        return socketClient.getProtocolVersion() >= 8;
+    }
+
+    public boolean isConnected() {
+        return isRunning;
+    }
+
+    public boolean isConnectedTo(String ip, int port) {
+        return this.port == port && this.ip.equals(ip);
+    }
+
+    public void sendObject(Command command, Object message) throws IOException, InterruptedException {
+        socketClient.sendObject(command, message);     // O transporte sincroniza as escritas
+    }
+
+    // "ip:porta" do nó, a mesma chave usada nas estatísticas dos downloads
+    public String getPeerKey() {
+        return ip + ":" + port;
     }
 
     public String getClientName() {
@@ -64,11 +118,20 @@ public class ClientThread extends Thread implements Comparable<ClientThread> {
 
     public void terminate() throws IOException, InterruptedException {
         isRunning = false; // Signal the thread to stop.
-        interrupt(); // Interrupt the thread if it's blocked.
+        thread.interrupt(); // Interrupt the thread if it's blocked.
         socketClient.stopConnection();
         System.out.println(clientName + " has been terminated.");
     }
 
+    // Termina a ligação sem propagar erros (ex.: ligação duplicada no pool)
+    public void close() {
+        try {
+            terminate();
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Could not terminate " + clientName + ": " + e.getMessage());
+        }
+    }
+
     @Override
     public int compareTo(ClientThread other) {
         return this.clientName.compareTo(other.clientName);
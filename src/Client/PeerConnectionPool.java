@@ -0,0 +1,71 @@
+package Client;
+
+import Communication.GlobalConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Ligações persistentes a cada nó, reutilizadas por todos os downloads
+// Cada ligação aceita vários pedidos de blocos em simultâneo (janela), para o link nunca ficar à espera de uma resposta
+public class PeerConnectionPool {
+
+    private final ClientManager clientManager;
+    private final Map<String, List<ClientThread>> connections = new HashMap<>();   // "ip:porta" -> ligações abertas
+
+    public PeerConnectionPool(ClientManager clientManager) {
+        this.clientManager = clientManager;
+    }
+
+    // Devolve a ligação ao nó com mais espaço livre na janela, abrindo uma nova enquanto não houver p2p.connectionsPerPeer
+    // As ligações abertas pelo utilizador (ClientManager.clientThreads) também são usadas
+    public ClientThread getConnection(String ip, int port) throws IOException {
+        String key = ip + ":" + port;
+        int maxConnections = Math.max(1, GlobalConfig.getInstance().getConnectionsPerPeer());
+        synchronized (this) {
+            List<ClientThread> candidates = getCandidates(key, ip, port);
+            if (candidates.size() >= maxConnections) {
+                return leastLoaded(candidates);
+            }
+        }
+        ClientThread created;
+        try {
+            created = new ClientThread(clientManager, ip, port);   // O handshake é feito fora do lock
+        } catch (RuntimeException e) {
+            throw new IOException("Could not connect to " + key, e);
+        }
+        synchronized (this) {
+            List<ClientThread> candidates = getCandidates(key, ip, port);
+            if (candidates.size() >= maxConnections) {    // Outra thread abriu uma ligação entretanto
+                created.close();
+                return leastLoaded(candidates);
+            }
+            connections.computeIfAbsent(key, k -> new ArrayList<>()).add(created);
+            return created;
+        }
+    }
+
+    private List<ClientThread> getCandidates(String key, String ip, int port) {
+        List<ClientThread> pooled = connections.computeIfAbsent(key, k -> new ArrayList<>());
+        pooled.removeIf(connection -> !connection.isConnected());
+        List<ClientThread> candidates = new ArrayList<>(pooled);
+        candidates.addAll(clientManager.findClientThreads(ip, port));
+        return candidates;
+    }
+
+    private ClientThread leastLoaded(List<ClientThread> candidates) {
+        ClientThread best = candidates.get(0);
+        for (ClientThread candidate : candidates) {
+            if (candidate.getAvailableRequestSlots() > best.getAvailableRequestSlots()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    public synchronized void remove(ClientThread connection) {
+        connections.values().forEach(list -> list.remove(connection));
+    }
+}
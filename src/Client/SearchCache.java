@@ -0,0 +1,117 @@
+package Client;
+
+import Communication.GlobalConfig;
+import Search.FileSearchResult;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Resultados de pesquisas recentes, pelo termo normalizado (minúsculas, espaços simples)
+// Uma entrada vale p2p.searchCacheTtl ms: na primeira metade é usada sem contactar os nós, na segunda é usada
+// enquanto a pesquisa é refeita em segundo plano. As entradas menos usadas saem quando passam de p2p.searchCacheBytes
+public class SearchCache {
+
+    private static final int RESULT_OVERHEAD_BYTES = 256;     // Estimativa por resultado (objetos, hash, ip)
+
+    public enum Freshness { FRESH, STALE }
+
+    private static class Entry {
+        private final Map<String, List<FileSearchResult>> results;
+        private final long createdAt;
+        private final long sizeBytes;
+
+        Entry(Map<String, List<FileSearchResult>> results, long createdAt, long sizeBytes) {
+            this.results = results;
+            this.createdAt = createdAt;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);     // Ordem de acesso (LRU)
+    private long totalBytes = 0;
+
+    public static String normalize(String term) {
+        return term.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    // Resultados guardados para o termo, ou null se não existem ou já expiraram
+    public synchronized Map<String, List<FileSearchResult>> get(String term) {
+        Entry entry = getValid(normalize(term));
+        return entry == null ? null : copy(entry.results);
+    }
+
+    // FRESH: pode ser usada sem pesquisar; STALE: deve ser atualizada; null: não existe ou expirou
+    public synchronized Freshness getFreshness(String term) {
+        Entry entry = getValid(normalize(term));
+        if (entry == null) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - entry.createdAt;
+        return age < GlobalConfig.getInstance().getSearchCacheTtl() / 2 ? Freshness.FRESH : Freshness.STALE;
+    }
+
+    public synchronized void put(String term, Map<String, List<FileSearchResult>> results) {
+        String key = normalize(term);
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            totalBytes -= previous.sizeBytes;
+        }
+        Entry entry = new Entry(copy(results), System.currentTimeMillis(), estimateSize(key, results));
+        entries.put(key, entry);
+        totalBytes += entry.sizeBytes;
+        evictExcess();
+    }
+
+    // Os nós ligados mudaram: os resultados guardados podem já não corresponder
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    private Entry getValid(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.createdAt >= GlobalConfig.getInstance().getSearchCacheTtl()) {
+            entries.remove(key);
+            totalBytes -= entry.sizeBytes;
+            return null;
+        }
+        return entry;
+    }
+
+    private void evictExcess() {
+        long maxBytes = GlobalConfig.getInstance().getSearchCacheBytes();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().sizeBytes;
+            eldest.remove();
+        }
+    }
+
+    private static long estimateSize(String key, Map<String, List<FileSearchResult>> results) {
+        long size = RESULT_OVERHEAD_BYTES + 2L * key.length();
+        for (List<FileSearchResult> nodes : results.values()) {
+            for (FileSearchResult result : nodes) {
+                size += RESULT_OVERHEAD_BYTES + 2L * result.getFileInfo().name.length();
+            }
+        }
+        return size;
+    }
+
+    private static Map<String, List<FileSearchResult>> copy(Map<String, List<FileSearchResult>> results) {
+        Map<String, List<FileSearchResult>> copy = new LinkedHashMap<>();
+        results.forEach((hash, nodes) -> copy.put(hash, new ArrayList<>(nodes)));
+        return copy;
+    }
+}
@@ -0,0 +1,122 @@
+package Client;
+
+import Search.FileSearchResult;
+import Search.WordSearchMessage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// Pesquisa em curso: recebe as respostas dos nós pelo id da pesquisa, sem as misturar com outras pesquisas
+// Cada resultado é entregue ao callback assim que chega; a pesquisa termina quando todos os nós responderam
+// ou quando o prazo acaba (com os resultados que chegaram até lá)
+public class SearchQuery {
+
+    private final WordSearchMessage message;
+    private final Consumer<FileSearchResult> onResult;
+    private final Map<String, List<FileSearchResult>> resultsByHash = new LinkedHashMap<>();   // Hash -> nós com o ficheiro
+    private final CompletableFuture<Map<String, List<FileSearchResult>>> completion = new CompletableFuture<>();
+    private final int peerCount;
+    private int pendingPeers;
+
+    SearchQuery(WordSearchMessage message, int peers, Consumer<FileSearchResult> onResult) {
+        this.message = message;
+        this.peerCount = peers;
+        this.pendingPeers = peers;
+        this.onResult = onResult;
+        if (peers == 0) {
+            finish();
+        }
+    }
+
+    public String getQueryId() {
+        return message.getQueryId();
+    }
+
+    public String getSearchTerm() {
+        return message.getSearchTerm();
+    }
+
+    // Nós a quem a pesquisa foi enviada
+    public int getPeerCount() {
+        return peerCount;
+    }
+
+    WordSearchMessage getMessage() {
+        return message;
+    }
+
+    // Completa com os resultados agrupados por hash quando a pesquisa termina
+    public CompletableFuture<Map<String, List<FileSearchResult>>> getCompletion() {
+        return completion;
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    void addReply(FileSearchResult[] results) {
+        addReply(results, true);
+    }
+
+    // Resposta de um nó; o callback é chamado fora do lock
+    // Uma resposta parcial (de um nó que reencaminhou a pesquisa) não conta como o fim da resposta desse nó
+    // O mesmo ficheiro no mesmo nó pode chegar por vários caminhos: só a primeira cópia é aceite
+    void addReply(FileSearchResult[] results, boolean complete) {
+        List<FileSearchResult> accepted = new ArrayList<>();
+        synchronized (this) {
+            if (completion.isDone()) {
+                return;     // Resposta depois do prazo
+            }
+            for (FileSearchResult result : results) {
+                List<FileSearchResult> nodes = resultsByHash.computeIfAbsent(result.getFileInfo().filehash, hash -> new ArrayList<>());
+                if (!containsNode(nodes, result)) {
+                    nodes.add(result);
+                    accepted.add(result);
+                }
+            }
+        }
+        if (onResult != null) {
+            accepted.forEach(onResult);
+        }
+        if (complete) {
+            peerDone();
+        }
+    }
+
+    private static boolean containsNode(List<FileSearchResult> nodes, FileSearchResult result) {
+        for (FileSearchResult node : nodes) {
+            if (node.getPort() == result.getPort() && Objects.equals(node.getIp(), result.getIp())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Nó que respondeu ou a quem não foi possível enviar a pesquisa
+    void peerDone() {
+        boolean last;
+        synchronized (this) {
+            last = --pendingPeers <= 0;
+        }
+        if (last) {
+            finish();
+        }
+    }
+
+    // Também chamado no fim do prazo: termina com os resultados que já chegaram
+    // (os dependentes do CompletableFuture correm sem o lock)
+    void finish() {
+        completion.complete(getResults());
+    }
+
+    public synchronized Map<String, List<FileSearchResult>> getResults() {
+        Map<String, List<FileSearchResult>> copy = new LinkedHashMap<>();
+        resultsByHash.forEach((hash, nodes) -> copy.put(hash, new ArrayList<>(nodes)));
+        return copy;
+    }
+}
@@ -2,68 +2,135 @@ package Client;
 
 import java.io.*;
 import java.net.*;
+import Communication.BinaryTransport;
 import Communication.Command;
+import Communication.GlobalConfig;
+import Communication.MessageTransport;
 import Communication.MessageWrapper;
+import Communication.NewConnectionAck;
+import Communication.NewConnectionRequest;
+import Communication.ObjectStreamTransport;
+import Download.BlockCodecs;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static Communication.Command.Terminate;
 
 public class SocketClient  {
 
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+
     private Socket clientSocket;
-    private ObjectOutputStream out;    // FLuxo de saída de dados
-    private ObjectInputStream in;    // FLuxo de entrada de dados
+    private MessageTransport transport;    // Fluxos de entrada e saída, no protocolo negociado
     private final String ip;
     private final int port;
-    private boolean ready = false;  // Para gerir o estado da comunicação
+    private volatile String blockCodec;    // Codec dos blocos escolhido pelo servidor (null: sem compressão)
+    private volatile int grantedCredits = 0;      // Pedidos de blocos que o servidor aceita em fila (0: não indicou)
+    private volatile int protocolVersion = 1;      // Versão negociada no handshake (ver WireProtocol.VERSION)
+    private volatile boolean ready = false;  // Para gerir o estado da comunicação
+    // Lock e Condition em vez de synchronized/wait: uma thread virtual bloqueada em I/O não prende a thread de suporte
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readyCondition = lock.newCondition();
 
     public SocketClient(String ip, int port) {
         this.ip = ip;
         this.port = port;
     }
 
-    public synchronized void startSocket(){
-        try{
-            this.clientSocket = new Socket(ip, port);   // Conecta-se ao servidor com determinado IP e por uma determinada porta
-            System.out.println(clientSocket.getLocalPort());
-            System.out.println("Client connected to " + ip + ":" + port);
-            this.out = new ObjectOutputStream(clientSocket.getOutputStream());  // Iniciado o fluxo de saída
-            this.in = new ObjectInputStream(clientSocket.getInputStream());   // Iniciado o fluxo de entrada
-            this.ready = true;  // Definida a conexão como pronta
-            notify();
-        }catch (IOException e) {
-            throw new RuntimeException(e);
+    // Liga-se ao nó e faz o handshake (ConnectionRequest/ConnectionAck), onde é negociado o protocolo das mensagens
+    // Se o nó não responder ao protocolo binário, volta a ligar-se com serialização Java
+    public void startSocket() throws IOException {
+        lock.lock();
+        try {
+            if (GlobalConfig.getInstance().isBinaryProtocol()) {
+                try {
+                    connect(true);
+                    return;
+                } catch (IOException e) {
+                    System.out.println("Binary protocol refused by " + ip + ":" + port + ", falling back to Java serialization");
+                    closeSocket();
+                }
+            }
+            connect(false);
+        } finally {
+            lock.unlock();
         }
-
     }
 
-    public void sendObject(Command command,  Object object) throws IOException, InterruptedException {
-        while (!ready) {    // Aguarda até que a conexão esteja pronta
-            wait();
+    private void connect(boolean binary) throws IOException {
+        this.clientSocket = new Socket(ip, port);   // Conecta-se ao servidor com determinado IP e por uma determinada porta
+        this.clientSocket.setSoTimeout(HANDSHAKE_TIMEOUT);   // Um nó que não entende o protocolo pode nunca responder
+        System.out.println(clientSocket.getLocalPort());
+        System.out.println("Client connected to " + ip + ":" + port);
+        if (binary) {
+            BinaryTransport binaryTransport = new BinaryTransport(clientSocket.getInputStream(), clientSocket.getOutputStream());
+            binaryTransport.writeMagic();
+            this.transport = binaryTransport;
+        } else {
+            ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());  // Iniciado o fluxo de saída
+            ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());   // Iniciado o fluxo de entrada
+            this.transport = new ObjectStreamTransport(out, in);
         }
-        System.out.println("Client sent message to " + ip + ":" + port);
-        MessageWrapper message = new MessageWrapper(this.ip, this.port,command, object); // "Embrulha" e envia uma mensagem
-        this.out.writeObject(message);   // Envia a mensagem
+        // Envia mensagem de pedido de conexão e aguarda a confirmação
+        // Oferece os codecs de compressão dos blocos ativos neste nó; o servidor escolhe um ou nenhum
+        transport.send(new MessageWrapper(this.ip, this.port, Command.ConnectionRequest,
+                new NewConnectionRequest(getLocalIP(), getLocalPort(), BlockCodecs.enabled())));
+        MessageWrapper ack = transport.receive();
+        if (ack.getCommand() != Command.ConnectionAck) {
+            throw new IOException("Conexão recusada pelo nó remoto");
+        }
+        this.blockCodec = ack.getData() instanceof NewConnectionAck ? ((NewConnectionAck) ack.getData()).getCodec() : null;
+        this.grantedCredits = ack.getData() instanceof NewConnectionAck ? ((NewConnectionAck) ack.getData()).getCredits() : 0;
+        if (transport instanceof BinaryTransport) {
+            this.protocolVersion = ((BinaryTransport) transport).getVersion();
+        } else {    // Serialização Java: nós anteriores respondem sem NewConnectionAck
+            this.protocolVersion = ack.getData() instanceof NewConnectionAck ? ((NewConnectionAck) ack.getData()).getVersion() : 1;
+        }
+        this.clientSocket.setSoTimeout(0);
+        System.out.println("Conexão confirmada com " + ip + ":" + port + (binary ? " (binary protocol" : " (Java serialization")
+                + (blockCodec == null ? ")" : ", " + blockCodec + " blocks)"));
+        this.ready = true;  // Definida a conexão como pronta
+        readyCondition.signalAll();
     }
 
-    public synchronized MessageWrapper receiveObject() throws IOException, InterruptedException {
-        while (!ready) {
-            wait();
+    private void awaitReady() throws InterruptedException {
+        if (ready) {
+            return;
         }
+        lock.lock();
         try {
-            return (MessageWrapper) in.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
+            while (!ready) {    // Aguarda até que a conexão esteja pronta
+                readyCondition.await();
+            }
+        } finally {
+            lock.unlock();
         }
+    }
 
+    public void sendObject(Command command,  Object object) throws IOException, InterruptedException {
+        awaitReady();
+        System.out.println("Client sent message to " + ip + ":" + port);
+        MessageWrapper message = new MessageWrapper(this.ip, this.port,command, object); // "Embrulha" e envia uma mensagem
+        this.transport.send(message);   // Envia a mensagem
+    }
+
+    public MessageWrapper receiveObject() throws IOException, InterruptedException {
+        awaitReady();
+        return transport.receive();
     }
 
-    public synchronized void stopConnection() throws IOException, InterruptedException {
+    public void stopConnection() throws IOException, InterruptedException {
         try {
             sendObject(Terminate, null); // Send the terminate command.
         } catch (IOException e) {
             System.err.println("Error sending terminate command: " + e.getMessage());
         }
         // Close the socket safely.
+        closeSocket();
+    }
+
+    private void closeSocket() {
         try {
             if (clientSocket != null && !clientSocket.isClosed()) {
                 System.out.println("Client disconnected");
@@ -75,6 +142,18 @@ public class SocketClient  {
         }
     }
 
+    public int getGrantedCredits() {
+        return grantedCredits;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public String getBlockCodec() {
+        return blockCodec;
+    }
+
     public String getLocalIP() {
         return clientSocket.getLocalAddress().getHostAddress();
     }
@@ -0,0 +1,64 @@
+package Communication;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Protocolo binário: frames com prefixo de tamanho e codificação manual de cada comando (ver WireProtocol)
+public class BinaryTransport implements MessageTransport {
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ReentrantLock sendLock = new ReentrantLock();   // Lock em vez de synchronized: não prende threads virtuais
+    private volatile int version = WireProtocol.VERSION;    // Versão negociada no handshake
+
+    public BinaryTransport(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    // Primeiros bytes enviados por quem abre a ligação, para o servidor distinguir o protocolo
+    public void writeMagic() throws IOException {
+        out.writeInt(WireProtocol.MAGIC);
+    }
+
+    @Override
+    public void send(MessageWrapper message) throws IOException {
+        ByteBuffer frame = WireProtocol.encodeFrame(message, version);
+        sendLock.lock();
+        try {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            out.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public MessageWrapper receive() throws IOException {
+        while (true) {
+            int length = in.readInt();
+            int frameVersion = in.readUnsignedByte();
+            int code = in.readUnsignedByte();
+            if (length < 2 || length > WireProtocol.maxFrameSize(code)) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            // Lido aos poucos: a memória ocupada cresce com os bytes que chegam, não com o tamanho anunciado
+            byte[] body = in.readNBytes(length - 2);
+            if (body.length != length - 2) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            MessageWrapper message = WireProtocol.decodeFrame(frameVersion, code, body, 0, body.length);
+            if (message == null) {
+                System.out.println("Unknown command ignored");
+                continue;   // Comando de uma versão mais recente: o frame é ignorado
+            }
+            version = WireProtocol.negotiatedVersion(message, frameVersion, version);
+            return message;
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,98 @@
+package Communication;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Protocolo das ligações de dados (bulk): só um cabeçalho pequeno passa pelo protocolo, o conteúdo dos blocos
+// é enviado com FileChannel.transferTo e lido diretamente do socket (para ser verificado antes de ser escrito)
+//
+// Início:   o cliente envia MAGIC e a unidade de transferência que propõe [int]; o nó responde com a unidade aceite [int]
+//           (a menor das duas): dimensiona os buffers do socket e é o máximo de cada envio e leitura de um bloco
+// Pedido:   [int blockId][short tamanho do hash][hash em ASCII]
+// Resposta: [int blockId][int tamanho][short tamanho da prova][prova de Merkle] seguido de "tamanho" bytes do bloco
+//           (tamanho NOT_AVAILABLE e prova vazia se o nó não tem o bloco)
+public final class BulkProtocol {
+
+    public static final int MAGIC = 0x50325044;    // "P2PD", primeiros bytes de uma ligação de dados
+    public static final int NOT_AVAILABLE = -1;
+    public static final int RESPONSE_HEADER_SIZE = 10;    // Sem a prova
+    public static final int HASH_LENGTH = 64;     // Hash do ficheiro em hexadecimal (SHA-256)
+    private static final int PROOF_HASH_SIZE = 32;
+    public static final int MAX_PROOF_SIZE = 31 * PROOF_HASH_SIZE;    // Um hash por nível da árvore de Merkle (até 2^31 blocos)
+
+    private BulkProtocol() {
+    }
+
+    public static final int MIN_TRANSFER_UNIT = 64 * 1024;
+
+    // Unidade aceite pelo nó: a menor das duas propostas, nunca abaixo de MIN_TRANSFER_UNIT
+    public static int negotiateTransferUnit(int proposed, int supported) {
+        return Math.max(MIN_TRANSFER_UNIT, Math.min(proposed, supported));
+    }
+
+    public static ByteBuffer encodeRequest(String fileHash, int blockId) {
+        byte[] hash = fileHash.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(6 + hash.length);
+        buffer.putInt(blockId).putShort((short) hash.length).put(hash).flip();
+        return buffer;
+    }
+
+    // Tamanho do hash de um pedido, lido sem sinal; outro tamanho é um cabeçalho inválido e termina a ligação
+    public static int readHashLength(ByteBuffer header) throws IOException {
+        int length = Short.toUnsignedInt(header.getShort());
+        if (length != HASH_LENGTH) {
+            throw new IOException("Invalid hash length in bulk request: " + length);
+        }
+        return length;
+    }
+
+    // Tamanho da prova de uma resposta, lido sem sinal; tem de ser um número inteiro de hashes, até MAX_PROOF_SIZE
+    public static int readProofLength(ByteBuffer header) throws IOException {
+        int length = Short.toUnsignedInt(header.getShort());
+        if (length > MAX_PROOF_SIZE || length % PROOF_HASH_SIZE != 0) {
+            throw new IOException("Invalid proof length in bulk response: " + length);
+        }
+        return length;
+    }
+
+    public static ByteBuffer encodeResponseHeader(int blockId, int length, byte[] proof) {
+        byte[] proofBytes = proof == null ? new byte[0] : proof;
+        ByteBuffer buffer = ByteBuffer.allocate(RESPONSE_HEADER_SIZE + proofBytes.length);
+        buffer.putInt(blockId).putInt(length).putShort((short) proofBytes.length).put(proofBytes).flip();
+        return buffer;
+    }
+
+    public static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Bulk connection closed");
+            }
+        }
+        buffer.flip();
+    }
+
+    // Lê o bloco em partes de no máximo transferUnit bytes: a cópia temporária que o JDK faz para ler de um socket
+    // para um buffer do heap fica com o tamanho da unidade, e não com o do bloco inteiro
+    public static void readFully(ReadableByteChannel channel, ByteBuffer buffer, int transferUnit) throws IOException {
+        int end = buffer.limit();
+        while (buffer.position() < end) {
+            buffer.limit(Math.min(end, buffer.position() + transferUnit));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Bulk connection closed");
+                }
+            }
+        }
+        buffer.flip();
+    }
+
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -10,5 +10,8 @@ public enum Command {
     FileSearchResult,
     WordSearchMessage,
     DownloadMessage,
-    DownloadResult
+    DownloadResult,
+    CancelDownload,
+    DownloadRange,
+    RequestRefused
 }
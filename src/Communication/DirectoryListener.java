@@ -0,0 +1,12 @@
+package Communication;
+
+import java.io.File;
+
+// Alterações no diretório partilhado, enviadas pelo DirectoryWatcher (ex.: para o FileIndex)
+public interface DirectoryListener {
+    void onFileChanged(File file);     // Ficheiro novo ou alterado, depois de deixar de mudar
+
+    void onFileDeleted(File file);
+
+    void onRescan();    // Eventos perdidos: o diretório foi lido de novo e qualquer ficheiro pode ter mudado
+}
@@ -0,0 +1,169 @@
+package Communication;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+// Snapshot em memória dos ficheiros do diretório partilhado, mantido pelos eventos do WatchService
+// O diretório só é lido por inteiro no início, quando há eventos perdidos (OVERFLOW) ou, sem WatchService, periodicamente
+public class DirectoryWatcher implements Runnable {
+
+    private static final long QUIET_MILLIS = 500;     // Um ficheiro a ser copiado só é comunicado quando deixa de mudar
+    private static final long RESCAN_MILLIS = 5000;   // Intervalo das leituras do diretório quando não há eventos
+
+    private final File directory;
+    private final List<DirectoryListener> listeners;
+    private final Map<String, File> snapshot = new HashMap<>();     // Nome -> ficheiro, só alterado pela thread do watcher
+    private final Map<String, Long> pendingChanges = new HashMap<>();   // Nome -> instante do último evento
+    private volatile File[] files = new File[0];    // Cópia publicada do snapshot, lida pelas outras threads
+    private volatile boolean running = true;
+    private volatile WatchService watchService;
+    private Thread thread;
+
+    public DirectoryWatcher(File directory, List<DirectoryListener> listeners) {
+        this.directory = directory;
+        this.listeners = listeners;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.toPath().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("Directory events not available, rescanning every " + RESCAN_MILLIS + " ms: " + e.getMessage());
+            closeWatchService();
+        }
+        scan(false);    // Depois do registo: uma alteração entre os dois passos não se perde
+    }
+
+    public void start() {
+        thread = NodeThreads.start("directory-watcher", this);
+    }
+
+    public File[] getFiles() {
+        return files;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                WatchService service = watchService;
+                if (service == null) {
+                    Thread.sleep(RESCAN_MILLIS);
+                    scan(true);
+                    continue;
+                }
+                WatchKey key = service.poll(pendingChanges.isEmpty() ? RESCAN_MILLIS : QUIET_MILLIS / 2, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        handle(event);
+                    }
+                    if (!key.reset()) {     // O diretório deixou de poder ser observado (ex.: apagado)
+                        System.out.println("Directory no longer watched: " + directory.getPath());
+                        closeWatchService();
+                        scan(true);
+                    }
+                }
+                flushChanges();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+        }
+    }
+
+    private void handle(WatchEvent<?> event) {
+        if (event.kind() == OVERFLOW) {
+            System.out.println("Directory events lost, rescanning " + directory.getPath());
+            scan(true);
+            return;
+        }
+        String name = event.context().toString();
+        File file = new File(directory, name);
+        if (event.kind() != ENTRY_DELETE && isShared(file)) {
+            if (snapshot.put(name, file) == null) {
+                publish();
+            }
+            pendingChanges.put(name, System.currentTimeMillis());
+        } else if (snapshot.remove(name) != null) {
+            publish();
+            pendingChanges.remove(name);
+            listeners.forEach(listener -> listener.onFileDeleted(file));
+        }
+    }
+
+    private void flushChanges() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> iterator = pendingChanges.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> change = iterator.next();
+            if (now - change.getValue() >= QUIET_MILLIS) {
+                iterator.remove();
+                File file = snapshot.get(change.getKey());
+                if (file != null) {
+                    listeners.forEach(listener -> listener.onFileChanged(file));
+                }
+            }
+        }
+    }
+
+    private void scan(boolean notify) {
+        snapshot.clear();
+        pendingChanges.clear();
+        File[] allFiles = directory.listFiles();
+        if (allFiles != null) {
+            for (File file : allFiles) {
+                if (isShared(file)) {
+                    snapshot.put(file.getName(), file);
+                }
+            }
+        }
+        publish();
+        if (notify) {
+            listeners.forEach(DirectoryListener::onRescan);
+        }
+    }
+
+    private void publish() {
+        files = snapshot.values().toArray(new File[0]);
+    }
+
+    // Ficheiros de estado (.ser) e downloads em curso (.part) não são partilhados
+    private static boolean isShared(File file) {
+        String name = file.getName();
+        return file.isFile() && !name.endsWith(".ser") && !name.endsWith(GlobalConfig.PART_SUFFIX);
+    }
+
+    public void close() {
+        running = false;
+        closeWatchService();
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void closeWatchService() {
+        WatchService service = watchService;
+        watchService = null;
+        if (service == null) {
+            return;
+        }
+        try {
+            service.close();
+        } catch (IOException e) {
+            System.out.println("Could not close directory watcher: " + e.getMessage());
+        }
+    }
+}
@@ -1,14 +1,42 @@
 package Communication;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class GlobalConfig {
 
     private static GlobalConfig instance = null;  // (singleton)
+    public static final String PART_SUFFIX = ".part";   // Ficheiros ainda a ser descarregados (não são partilhados)
     private String defaultPath = "documents/"; // Caminho padrão para diretórios
-    private File[] filesInDirectory;
+    private DirectoryWatcher directoryWatcher;    // Snapshot dos ficheiros partilhados, criado na primeira utilização
+    private final List<DirectoryListener> directoryListeners = new CopyOnWriteArrayList<>();
+    private int maxOpenFiles = Integer.getInteger("p2p.maxOpenFiles", 64);   // Ficheiros mantidos abertos pelo BlockReader
+    private boolean bulkTransfer = Boolean.getBoolean("p2p.bulkTransfer");    // Blocos transferidos por ligações de dados (envio zero-copy; a receção lê para memória)
+    private boolean binaryProtocol = !"java".equalsIgnoreCase(System.getProperty("p2p.wireFormat", "binary"));  // Protocolo das mensagens
+    private boolean nioServer = "nio".equalsIgnoreCase(System.getProperty("p2p.serverEngine", "threads"));  // Servidor com Selector
+    private int ioThreads = Integer.getInteger("p2p.ioThreads", 2);    // Threads de I/O do servidor NIO
+    private boolean virtualThreads = Boolean.getBoolean("p2p.virtualThreads");    // Ligações e downloads em threads virtuais
+    private int connectionsPerPeer = Integer.getInteger("p2p.connectionsPerPeer", 1);   // Ligações persistentes por nó para downloads
+    private int requestWindow = Integer.getInteger("p2p.requestWindow", 16);   // Pedidos de blocos sem resposta por ligação
+    private String peerScheduler = System.getProperty("p2p.peerScheduler", "adaptive");   // Escolha do nó para cada bloco
+    private int requestCredits = Integer.getInteger("p2p.requestCredits", 32);   // Pedidos de blocos em fila que o servidor aceita por ligação
+    private int maxPendingWriteBytes = Integer.getInteger("p2p.maxPendingWriteBytes", 8 * 1024 * 1024);   // Respostas por escrever por ligação (servidor NIO)
+    private int maxBatchBlocks = Integer.getInteger("p2p.maxBatchBlocks", 16);   // Blocos seguidos pedidos num só DownloadRange (1: um pedido por bloco)
+    private int blockTimeout = Integer.getInteger("p2p.blockTimeout", 5000);   // Prazo (ms) de um pedido de bloco antes de ser reatribuído
+    private int blockRetries = Integer.getInteger("p2p.blockRetries", 5);      // Falhas de um bloco até o download ser abandonado
+    private int endGameBlocks = Integer.getInteger("p2p.endGameBlocks", 8);    // Blocos em falta a partir dos quais se pedem em duplicado
+    private int minBlockSize = Integer.getInteger("p2p.minBlockSize", 16 * 1024);    // Limites do tamanho dos blocos de cada ficheiro
+    private int maxBlockSize = Integer.getInteger("p2p.maxBlockSize", 4 * 1024 * 1024);
+    private int bulkTransferUnit = Integer.getInteger("p2p.bulkTransferUnit", 1024 * 1024);   // Buffers e partes dos envios/leituras das ligações de dados, negociado com o nó
+    private int searchCacheTtl = Integer.getInteger("p2p.searchCacheTtl", 60000);    // Validade (ms) dos resultados de pesquisa guardados
+    private int searchCacheBytes = Integer.getInteger("p2p.searchCacheBytes", 4 * 1024 * 1024);    // Memória máxima (estimada) da cache de pesquisas
+    private String compression = System.getProperty("p2p.compression", "none");    // Codecs oferecidos/aceites para os blocos, por preferência
+    private int compressionLevel = Integer.getInteger("p2p.compressionLevel", 1);   // Nível do Deflater (1: mais rápido, 9: mais pequeno)
+    private int searchTtl = Integer.getInteger("p2p.searchTtl", 3);    // Nós que uma pesquisa pode percorrer (1: só os vizinhos)
+    private int searchHopTimeout = Integer.getInteger("p2p.searchHopTimeout", 800);    // Prazo (ms) dado a cada salto de uma pesquisa reencaminhada
+    private int indexThreads = Integer.getInteger("p2p.indexThreads", Runtime.getRuntime().availableProcessors());  // Ficheiros indexados em paralelo
+    private int servingWorkers = Integer.getInteger("p2p.servingWorkers", Runtime.getRuntime().availableProcessors());  // Workers que servem blocos
 
     public static GlobalConfig getInstance() {
         if (instance == null) {    // Verifica se a instância ainda não foi criada
@@ -18,7 +46,6 @@ public class GlobalConfig {
     }
 
     private GlobalConfig(){
-        readAllFiles();
     }
 
     // Metodo para obter o caminho padrão
@@ -30,8 +57,7 @@ public class GlobalConfig {
     public void setDefaultPath(String defaultPath) {
         this.defaultPath = defaultPath;
         validateDirectory();
-        readAllFiles();
-
+        watchDirectory();
     }
 
     private void validateDirectory(){
@@ -46,21 +72,233 @@ public class GlobalConfig {
         }
     }
 
-    private void readAllFiles(){
-        File[] allFiles = new File(getDefaultPath()).listFiles();
-        List<File> fileList = new ArrayList<>();
-        if (allFiles != null) {
-            for (File file : allFiles) {
-                if (file.isFile() && !file.getName().endsWith(".ser")) {
-                    fileList.add(file);
-                }
-            }
+    // Passa a observar o diretório partilhado atual (o watcher anterior é fechado)
+    private synchronized void watchDirectory() {
+        if (directoryWatcher != null) {
+            directoryWatcher.close();
         }
-        this.filesInDirectory = fileList.toArray(new File[0]);
+        directoryWatcher = new DirectoryWatcher(new File(defaultPath), directoryListeners);
+        directoryWatcher.start();
+    }
+
+    public void addDirectoryListener(DirectoryListener listener) {
+        directoryListeners.add(listener);
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    public boolean isBulkTransfer() {
+        return bulkTransfer;
+    }
+
+    public void setBulkTransfer(boolean bulkTransfer) {
+        this.bulkTransfer = bulkTransfer;
+    }
+
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    public boolean isNioServer() {
+        return nioServer;
+    }
+
+    public void setNioServer(boolean nioServer) {
+        this.nioServer = nioServer;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getServingWorkers() {
+        return servingWorkers;
+    }
+
+    public void setServingWorkers(int servingWorkers) {
+        this.servingWorkers = servingWorkers;
+    }
+
+    public int getConnectionsPerPeer() {
+        return connectionsPerPeer;
+    }
+
+    public void setConnectionsPerPeer(int connectionsPerPeer) {
+        this.connectionsPerPeer = connectionsPerPeer;
+    }
+
+    public int getRequestCredits() {
+        return requestCredits;
+    }
+
+    public void setRequestCredits(int requestCredits) {
+        this.requestCredits = requestCredits;
+    }
+
+    public int getMaxPendingWriteBytes() {
+        return maxPendingWriteBytes;
+    }
+
+    public void setMaxPendingWriteBytes(int maxPendingWriteBytes) {
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+    }
+
+    public int getMaxBatchBlocks() {
+        return maxBatchBlocks;
+    }
+
+    public void setMaxBatchBlocks(int maxBatchBlocks) {
+        this.maxBatchBlocks = maxBatchBlocks;
+    }
+
+    public int getRequestWindow() {
+        return requestWindow;
+    }
+
+    public void setRequestWindow(int requestWindow) {
+        this.requestWindow = requestWindow;
+    }
+
+    public String getPeerScheduler() {
+        return peerScheduler;
+    }
+
+    public void setPeerScheduler(String peerScheduler) {
+        this.peerScheduler = peerScheduler;
+    }
+
+    public int getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    public void setBlockTimeout(int blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    public int getBlockRetries() {
+        return blockRetries;
+    }
+
+    public void setBlockRetries(int blockRetries) {
+        this.blockRetries = blockRetries;
+    }
+
+    public int getEndGameBlocks() {
+        return endGameBlocks;
+    }
+
+    public void setEndGameBlocks(int endGameBlocks) {
+        this.endGameBlocks = endGameBlocks;
+    }
+
+    public int getMinBlockSize() {
+        return minBlockSize;
+    }
+
+    public void setMinBlockSize(int minBlockSize) {
+        this.minBlockSize = minBlockSize;
+    }
+
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    public void setMaxBlockSize(int maxBlockSize) {
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    public int getBulkTransferUnit() {
+        return bulkTransferUnit;
+    }
+
+    public void setBulkTransferUnit(int bulkTransferUnit) {
+        this.bulkTransferUnit = bulkTransferUnit;
+    }
+
+    public int getSearchCacheTtl() {
+        return searchCacheTtl;
     }
 
-    public File[] getFilesInDirectory() {
-        readAllFiles();
-        return filesInDirectory;
+    public void setSearchCacheTtl(int searchCacheTtl) {
+        this.searchCacheTtl = searchCacheTtl;
+    }
+
+    public int getSearchCacheBytes() {
+        return searchCacheBytes;
+    }
+
+    public void setSearchCacheBytes(int searchCacheBytes) {
+        this.searchCacheBytes = searchCacheBytes;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getSearchTtl() {
+        return searchTtl;
+    }
+
+    public void setSearchTtl(int searchTtl) {
+        this.searchTtl = searchTtl;
+    }
+
+    public int getSearchHopTimeout() {
+        return searchHopTimeout;
+    }
+
+    public void setSearchHopTimeout(int searchHopTimeout) {
+        this.searchHopTimeout = searchHopTimeout;
+    }
+
+    public int getIndexThreads() {
+        return indexThreads;
+    }
+
+    public void setIndexThreads(int indexThreads) {
+        this.indexThreads = indexThreads;
+    }
+
+    // Ficheiros partilhados, sem ler o diretório: o snapshot é atualizado pelos eventos do DirectoryWatcher
+    public synchronized File[] getFilesInDirectory() {
+        if (directoryWatcher == null) {
+            validateDirectory();
+            watchDirectory();
+        }
+        return directoryWatcher.getFiles();
     }
 }
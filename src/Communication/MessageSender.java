@@ -0,0 +1,10 @@
+package Communication;
+
+import java.io.IOException;
+
+// Lado de escrita de uma ligação: o servidor só precisa de enviar respostas, mesmo nas ligações NIO,
+// em que as mensagens recebidas são lidas pela thread de I/O e não por quem envia
+public interface MessageSender {
+
+    void send(MessageWrapper message) throws IOException;     // Pode ser chamado por várias threads
+}
@@ -0,0 +1,9 @@
+package Communication;
+
+import java.io.IOException;
+
+// Forma como as MessageWrapper são escritas e lidas numa ligação (serialização Java ou protocolo binário)
+public interface MessageTransport extends MessageSender {
+
+    MessageWrapper receive() throws IOException;     // Chamado apenas pela thread que lê a ligação
+}
@@ -3,6 +3,8 @@ package Communication;
 import java.io.Serializable;
 
 public class MessageWrapper implements Serializable {
+    private static final long serialVersionUID = -1124882453525619319L;    // UID implícito da versão original
+
     private final String serverIp;
     private final int serverPort;
     private final Command command;
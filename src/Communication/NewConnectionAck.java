@@ -0,0 +1,31 @@
+package Communication;
+
+import java.io.Serializable;
+
+// Resposta do servidor ao NewConnectionRequest: versão do protocolo, codec escolhido para os blocos
+// e créditos (pedidos de blocos que o servidor aceita em fila nesta ligação)
+public class NewConnectionAck implements Serializable {
+    private static final long serialVersionUID = 1L;     // Campos novos são acrescentados sem mudar o UID (chegam a 0/null de versões anteriores)
+
+    private final int version;     // No protocolo binário é sempre a versão negociada na ligação
+    private final String codec;    // null: blocos sem compressão
+    private final int credits;     // 0: o servidor não indicou (versões anteriores)
+
+    public NewConnectionAck(int version, String codec, int credits) {
+        this.version = version;
+        this.codec = codec;
+        this.credits = credits;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public int getCredits() {
+        return credits;
+    }
+}
@@ -3,13 +3,25 @@ package Communication;
 import java.io.Serializable;
 
 public class NewConnectionRequest implements Serializable {
+    private static final long serialVersionUID = 8183287888067214764L;     // Original: nós anteriores leem o pedido sem os codecs
+
     private String ip;
     private int port;
+    private String[] codecs;    // Codecs de compressão dos blocos aceites pelo cliente, por preferência (null: nenhum)
 
 
     public NewConnectionRequest(String ip, int port) {
+        this(ip, port, null);
+    }
+
+    public NewConnectionRequest(String ip, int port, String[] codecs) {
         this.ip = ip;
         this.port = port;
+        this.codecs = codecs;
+    }
+
+    public String[] getCodecs() {
+        return codecs;
     }
 
     public String getIp() {
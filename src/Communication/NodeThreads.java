@@ -0,0 +1,21 @@
+package Communication;
+
+// Criação das threads do nó: threads de plataforma (por omissão) ou threads virtuais (-Dp2p.virtualThreads=true)
+public final class NodeThreads {
+
+    private NodeThreads() {
+    }
+
+    public static Thread start(String name, Runnable task) {
+        Thread thread = create(name, task);
+        thread.start();
+        return thread;
+    }
+
+    public static Thread create(String name, Runnable task) {
+        if (GlobalConfig.getInstance().isVirtualThreads()) {
+            return Thread.ofVirtual().name(name).unstarted(task);
+        }
+        return Thread.ofPlatform().name(name).unstarted(task);
+    }
+}
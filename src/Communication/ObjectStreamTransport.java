@@ -0,0 +1,36 @@
+package Communication;
+
+import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Modo antigo: cada MessageWrapper é enviada com serialização Java (ObjectOutputStream)
+public class ObjectStreamTransport implements MessageTransport {
+
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+    private final ReentrantLock sendLock = new ReentrantLock();   // Lock em vez de synchronized: não prende threads virtuais
+
+    public ObjectStreamTransport(ObjectOutputStream out, ObjectInputStream in) {
+        this.out = out;
+        this.in = in;
+    }
+
+    @Override
+    public void send(MessageWrapper message) throws IOException {
+        sendLock.lock();
+        try {
+            out.writeObject(message);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public MessageWrapper receive() throws IOException {
+        try {
+            return (MessageWrapper) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package Communication;
+
+import Download.FileBlockAnswerMessage;
+import Download.FileBlockCancelMessage;
+import Download.FileBlockRangeRequestMessage;
+import Download.FileBlockRequestMessage;
+import Files.FileBlockInfo;
+import Files.FileInfo;
+import Search.FileSearchResult;
+import Search.SearchReply;
+import Search.WordSearchMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Protocolo binário das mensagens: uma ligação começa com MAGIC e depois só circulam frames
+//
+// Frame: [int tamanho][byte versão][byte comando][corpo]
+// Corpo: [string serverIp][int serverPort][campos do comando]
+//
+// O tamanho permite ignorar comandos desconhecidos e campos acrescentados por versões mais recentes.
+// A versão usada na ligação é negociada no ConnectionRequest/ConnectionAck (a mais baixa das duas).
+public final class WireProtocol {
+
+    public static final int MAGIC = 0x50325042;     // "P2PB"
+    // 2: DownloadResult leva a prova de Merkle do bloco
+    // 3: o manifesto (FileInfo) leva o tamanho dos blocos
+    // 4: tamanhos e posições em long (ficheiros com mais de 2 GB)
+    // 5: as pesquisas levam um id, repetido na resposta
+    // 6: as pesquisas levam o número de saltos (ttl) e as respostas indicam se são parciais
+    // 7: compressão dos blocos negociada no handshake; DownloadResult indica o codec e o tamanho original
+    // 8: pedidos de vários blocos seguidos (DownloadRange)
+    // 9: o ConnectionAck leva os créditos da ligação; RequestRefused para pedidos acima dos créditos
+    public static final int VERSION = 9;
+    // O maior frame legítimo é um DownloadResult: um bloco com a prova e os campos da mensagem
+    public static final int MAX_FRAME_SIZE = FileInfo.MAX_BLOCK_SIZE + 64 * 1024;
+    public static final int MAX_CONTROL_FRAME_SIZE = 64 * 1024;     // Handshake, pedidos e pesquisas
+
+    private WireProtocol() {
+    }
+
+    // Códigos fixos na rede, independentes da ordem do enum Command
+    public static int commandCode(Command command) {
+        switch (command) {
+            case ConnectionRequest: return 1;
+            case ConnectionAck: return 2;
+            case String: return 3;
+            case Terminate: return 4;
+            case FileSearchResult: return 5;
+            case WordSearchMessage: return 6;
+            case DownloadMessage: return 7;
+            case DownloadResult: return 8;
+            case CancelDownload: return 9;
+            case DownloadRange: return 10;
+            case RequestRefused: return 11;
+            default: throw new IllegalArgumentException("No wire code for " + command);
+        }
+    }
+
+    public static Command commandOf(int code) {
+        switch (code) {
+            case 1: return Command.ConnectionRequest;
+            case 2: return Command.ConnectionAck;
+            case 3: return Command.String;
+            case 4: return Command.Terminate;
+            case 5: return Command.FileSearchResult;
+            case 6: return Command.WordSearchMessage;
+            case 7: return Command.DownloadMessage;
+            case 8: return Command.DownloadResult;
+            case 9: return Command.CancelDownload;
+            case 10: return Command.DownloadRange;
+            case 11: return Command.RequestRefused;
+            default: return null;
+        }
+    }
+
+    // Tamanho máximo do frame de cada comando, verificado antes de o corpo ser lido
+    // Só blocos e resultados de pesquisas chegam a MAX_FRAME_SIZE; comandos desconhecidos também, para poderem ser ignorados
+    public static int maxFrameSize(int code) {
+        Command command = commandOf(code);
+        if (command == null || command == Command.DownloadResult || command == Command.FileSearchResult) {
+            return MAX_FRAME_SIZE;
+        }
+        return MAX_CONTROL_FRAME_SIZE;
+    }
+
+    // Codifica um frame completo, incluindo o prefixo de tamanho
+    public static ByteBuffer encodeFrame(MessageWrapper message, int version) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frame);
+        out.writeInt(0);    // Tamanho, preenchido no fim
+        out.writeByte(version);
+        out.writeByte(commandCode(message.getCommand()));
+        encode(message, out, version);
+        ByteBuffer buffer = ByteBuffer.wrap(frame.toByteArray());
+        int length = buffer.remaining() - 4;
+        if (length > maxFrameSize(commandCode(message.getCommand()))) {
+            throw new IOException("Frame too large for " + message.getCommand() + ": " + length + " bytes");
+        }
+        buffer.putInt(0, length);
+        return buffer;
+    }
+
+    // Descodifica o corpo de um frame; devolve null se o comando não for conhecido (versão mais recente)
+    public static MessageWrapper decodeFrame(int version, int code, byte[] body, int offset, int length) throws IOException {
+        Command command = commandOf(code);
+        if (command == null) {
+            return null;
+        }
+        return decode(command, new DataInputStream(new ByteArrayInputStream(body, offset, length)), version);
+    }
+
+    // Versão a usar na ligação depois de receber a mensagem (só muda durante o handshake)
+    public static int negotiatedVersion(MessageWrapper message, int frameVersion, int current) {
+        if (message.getCommand() == Command.ConnectionRequest) {
+            return Math.min(frameVersion, VERSION);     // Lado do servidor: a versão mais alta suportada pelos dois
+        }
+        if (message.getCommand() == Command.ConnectionAck) {
+            return Math.min(((NewConnectionAck) message.getData()).getVersion(), VERSION);   // Lado do cliente: aceita a escolha do servidor
+        }
+        return current;
+    }
+
+    public static void encode(MessageWrapper message, DataOutputStream out, int version) throws IOException {
+        writeString(out, message.getServerIp());
+        out.writeInt(message.getServerPort());
+        Object data = message.getData();
+        switch (message.getCommand()) {
+            case ConnectionRequest: {
+                NewConnectionRequest request = (NewConnectionRequest) data;
+                writeString(out, request.getIp());
+                out.writeInt(request.getPort());
+                if (version >= 7) {
+                    String[] codecs = request.getCodecs() == null ? new String[0] : request.getCodecs();
+                    out.writeInt(codecs.length);
+                    for (String codec : codecs) {
+                        writeString(out, codec);
+                    }
+                }
+                break;
+            }
+            case ConnectionAck: {
+                out.writeInt(version);
+                if (version >= 7) {
+                    writeString(out, data instanceof NewConnectionAck ? ((NewConnectionAck) data).getCodec() : null);
+                }
+                if (version >= 9) {
+                    out.writeInt(data instanceof NewConnectionAck ? ((NewConnectionAck) data).getCredits() : 0);
+                }
+                break;
+            }
+            case String: {
+                writeString(out, data == null ? null : data.toString());
+                break;
+            }
+            case Terminate: {
+                break;
+            }
+            case WordSearchMessage: {
+                WordSearchMessage search = (WordSearchMessage) data;
+                writeString(out, search.getSearchTerm());
+                if (version >= 5) {
+                    writeString(out, search.getQueryId());
+                }
+                if (version >= 6) {
+                    out.writeByte(Math.max(0, Math.min(search.getTtl(), 255)));
+                }
+                break;
+            }
+            case FileSearchResult: {
+                SearchReply reply = (SearchReply) data;
+                if (version >= 5) {
+                    writeString(out, reply.getQueryId());
+                }
+                if (version >= 6) {
+                    out.writeBoolean(reply.isComplete());
+                }
+                FileSearchResult[] results = reply.getResults();
+                int count = 0;
+                for (FileSearchResult result : results) {
+                    if (fitsVersion(result.getFileInfo(), version)) {
+                        count++;
+                    }
+                }
+                out.writeInt(count);
+                for (FileSearchResult result : results) {
+                    if (!fitsVersion(result.getFileInfo(), version)) {
+                        continue;   // Ficheiros grandes não são anunciados a nós que não os conseguem descarregar
+                    }
+                    writeString(out, result.getWordSearchMessage().getSearchTerm());
+                    writeFileInfo(out, result.getFileInfo(), version);
+                    writeString(out, result.getIp());
+                    out.writeInt(result.getPort());
+                }
+                break;
+            }
+            case DownloadMessage: {
+                FileBlockRequestMessage request = (FileBlockRequestMessage) data;
+                writeString(out, request.getFileName());
+                writeString(out, request.getFileHash());
+                writeString(out, request.getDtmUID());
+                out.writeInt(request.getBlockID());
+                FileBlockInfo block = request.getRequestBlock();
+                if (version >= 4) {
+                    out.writeLong(block == null ? -1 : block.startByte);
+                    out.writeLong(block == null ? -1 : block.endByte);
+                } else {
+                    // O servidor usa as posições do seu manifesto; as que não cabem num int não são enviadas
+                    boolean fits = block != null && block.endByte <= Integer.MAX_VALUE;
+                    out.writeInt(fits ? (int) block.startByte : -1);
+                    out.writeInt(fits ? (int) block.endByte : -1);
+                }
+                break;
+            }
+            case DownloadResult: {
+                FileBlockAnswerMessage answer = (FileBlockAnswerMessage) data;
+                writeString(out, answer.getFileHash());
+                writeString(out, answer.getDtmUID());
+                out.writeInt(answer.getBlockId());
+                writeBytes(out, answer.getData());
+                writeString(out, answer.getSenderIP());
+                out.writeInt(answer.getSenderPort());
+                if (version >= 2) {
+                    writeBytes(out, answer.getProof());
+                }
+                if (version >= 7) {
+                    writeString(out, answer.getCodec());
+                    out.writeInt(answer.getRawLength());
+                }
+                break;
+            }
+            case CancelDownload:
+            case RequestRefused: {      // Os dois identificam um pedido de bloco (dtmUID, bloco)
+                FileBlockCancelMessage cancel = (FileBlockCancelMessage) data;
+                writeString(out, cancel.getDtmUID());
+                out.writeInt(cancel.getBlockId());
+                break;
+            }
+            case DownloadRange: {
+                FileBlockRangeRequestMessage range = (FileBlockRangeRequestMessage) data;
+                writeString(out, range.getFileHash());
+                writeString(out, range.getDtmUID());
+                out.writeInt(range.getFirstBlock());
+                out.writeInt(range.getCount());
+                break;
+            }
+            default:
+                throw new IOException("Command not supported by the binary protocol: " + message.getCommand());
+        }
+    }
+
+    public static MessageWrapper decode(Command command, DataInputStream in, int version) throws IOException {
+        String serverIp = readString(in);
+        int serverPort = in.readInt();
+        Object data;
+        switch (command) {
+            case ConnectionRequest: {
+                String ip = readString(in);
+                int port = in.readInt();
+                String[] codecs = null;
+                if (version >= 7) {
+                    codecs = new String[in.readInt()];
+                    for (int i = 0; i < codecs.length; i++) {
+                        codecs[i] = readString(in);
+                    }
+                }
+                data = new NewConnectionRequest(ip, port, codecs);
+                break;
+            }
+            case ConnectionAck: {
+                int chosen = in.readInt();    // Versão escolhida pelo servidor
+                String codec = version >= 7 ? readString(in) : null;
+                data = new NewConnectionAck(chosen, codec, version >= 9 ? in.readInt() : 0);
+                break;
+            }
+            case String: {
+                data = readString(in);
+                break;
+            }
+            case Terminate: {
+                data = null;
+                break;
+            }
+            case WordSearchMessage: {
+                String term = readString(in);
+                String queryId = version >= 5 ? readString(in) : null;
+                int ttl = version >= 6 ? in.readUnsignedByte() : 1;     // Versões anteriores não reencaminham
+                data = new WordSearchMessage(term, queryId, ttl);
+                break;
+            }
+            case FileSearchResult: {
+                String queryId = version >= 5 ? readString(in) : null;
+                boolean complete = version < 6 || in.readBoolean();
+                FileSearchResult[] results = new FileSearchResult[in.readInt()];
+                for (int i = 0; i < results.length; i++) {
+                    WordSearchMessage search = new WordSearchMessage(readString(in), queryId);
+                    FileInfo info = readFileInfo(in, version);
+                    results[i] = new FileSearchResult(search, info, readString(in), in.readInt());
+                }
+                data = new SearchReply(queryId, results, complete);
+                break;
+            }
+            case DownloadMessage: {
+                String fileName = readString(in);
+                String fileHash = readString(in);
+                String dtmUID = readString(in);
+                int blockID = in.readInt();
+                long startByte = version >= 4 ? in.readLong() : in.readInt();
+                long endByte = version >= 4 ? in.readLong() : in.readInt();
+                FileBlockInfo block = startByte < 0 ? null : new FileBlockInfo(fileName, startByte, endByte);
+                data = new FileBlockRequestMessage(block, fileName, fileHash, dtmUID, blockID);
+                break;
+            }
+            case DownloadResult: {
+                String fileHash = readString(in);
+                String dtmUID = readString(in);
+                int blockId = in.readInt();
+                byte[] bytes = readBytes(in);
+                String senderIP = readString(in);
+                int senderPort = in.readInt();
+                byte[] proof = version >= 2 ? readBytes(in) : null;
+                String codec = version >= 7 ? readString(in) : null;
+                int rawLength = version >= 7 ? in.readInt() : bytes.length;
+                data = new FileBlockAnswerMessage(fileHash, bytes, blockId, dtmUID, senderIP, senderPort, proof, codec, rawLength);
+                break;
+            }
+            case CancelDownload:
+            case RequestRefused: {
+                data = new FileBlockCancelMessage(readString(in), in.readInt());
+                break;
+            }
+            case DownloadRange: {
+                data = new FileBlockRangeRequestMessage(readString(in), readString(in), in.readInt(), in.readInt());
+                break;
+            }
+            default:
+                throw new IOException("Command not supported by the binary protocol: " + command);
+        }
+        return new MessageWrapper(serverIp, serverPort, command, data);
+    }
+
+    private static void writeFileInfo(DataOutputStream out, FileInfo info, int version) throws IOException {
+        writeString(out, info.name);
+        writeString(out, info.filehash);
+        if (version >= 4) {
+            out.writeLong(info.fileSize);
+        } else {
+            out.writeInt((int) info.fileSize);     // Só ficheiros que cabem num int (ver fitsVersion)
+        }
+        if (version >= 3) {
+            out.writeInt(info.blocksize);
+        }
+    }
+
+    private static boolean fitsVersion(FileInfo info, int version) {
+        return version >= 4 || info.fileSize <= Integer.MAX_VALUE;
+    }
+
+    private static FileInfo readFileInfo(DataInputStream in, int version) throws IOException {
+        String name = readString(in);
+        String filehash = readString(in);
+        long fileSize = version >= 4 ? in.readLong() : in.readInt();
+        if (fileSize < 0) {
+            throw new IOException("Invalid file size: " + fileSize);
+        }
+        int blocksize = version >= 3 ? in.readInt() : FileInfo.LEGACY_BLOCK_SIZE;
+        if (blocksize <= 0 || blocksize > FileInfo.MAX_BLOCK_SIZE) {
+            throw new IOException("Invalid block size: " + blocksize);
+        }
+        try {
+            return new FileInfo(name, filehash, fileSize, blocksize);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid field length: " + length);
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+}
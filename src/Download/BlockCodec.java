@@ -0,0 +1,15 @@
+package Download;
+
+import java.io.IOException;
+
+// Compressão dos dados dos blocos nas respostas (ver BlockCodecs para os codecs disponíveis e a negociação)
+public interface BlockCodec {
+
+    String getName();     // Nome usado na negociação e nas respostas
+
+    // Dados comprimidos, ou null se não ficam mais pequenos (o bloco segue sem compressão)
+    byte[] compress(byte[] data);
+
+    // rawLength vem do outro nó: IOException se for negativo ou maior do que FileInfo.MAX_BLOCK_SIZE
+    byte[] decompress(byte[] data, int rawLength) throws IOException;
+}
@@ -0,0 +1,111 @@
+package Download;
+
+import Communication.GlobalConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Codecs de compressão dos blocos e a sua negociação por ligação
+// O cliente oferece os codecs de p2p.compression no ConnectionRequest (por ordem de preferência) e o servidor
+// escolhe o primeiro que também tem ativo; se não houver nenhum em comum, a ligação envia os blocos sem compressão
+// Cada resposta indica o codec usado: um bloco que não fica mais pequeno segue sem compressão
+public final class BlockCodecs {
+
+    public static final String NONE = "none";
+
+    private static final Map<String, BlockCodec> codecs = new LinkedHashMap<>();
+    private static final Map<String, CompressionStats> stats = new ConcurrentHashMap<>();   // Nó -> contadores
+
+    static {
+        register(new DeflateBlockCodec(GlobalConfig.getInstance().getCompressionLevel()));
+    }
+
+    private BlockCodecs() {
+    }
+
+    public static synchronized void register(BlockCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    // null para "none" ou um codec desconhecido
+    public static synchronized BlockCodec forName(String name) {
+        return name == null ? null : codecs.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    // Codecs ativos neste nó (p2p.compression), pela ordem configurada; vazio sem compressão
+    public static String[] enabled() {
+        List<String> names = new ArrayList<>();
+        for (String name : GlobalConfig.getInstance().getCompression().split(",")) {
+            BlockCodec codec = forName(name.trim());
+            if (codec != null && !names.contains(codec.getName())) {
+                names.add(codec.getName());
+            }
+        }
+        return names.toArray(new String[0]);
+    }
+
+    // Lado do servidor: o primeiro codec oferecido pelo cliente que também está ativo aqui, ou null
+    public static BlockCodec choose(String[] offered) {
+        if (offered == null) {
+            return null;
+        }
+        List<String> local = List.of(enabled());
+        for (String name : offered) {
+            if (name != null && local.contains(name.toLowerCase(Locale.ROOT))) {
+                return forName(name);
+            }
+        }
+        return null;
+    }
+
+    // Resposta com os dados comprimidos pelo codec da ligação, ou a mesma resposta sem codec ou se não compensar
+    public static FileBlockAnswerMessage compress(FileBlockAnswerMessage answer, BlockCodec codec, String peer) {
+        if (codec == null) {
+            return answer;
+        }
+        byte[] data = answer.getData();
+        long start = System.nanoTime();
+        byte[] compressed = codec.compress(data);
+        long nanos = System.nanoTime() - start;
+        if (compressed == null) {
+            statsFor(peer).blockSentRaw(data.length, nanos);
+            return answer;
+        }
+        statsFor(peer).blockCompressed(data.length, compressed.length, nanos);
+        return answer.withData(compressed, codec.getName(), data.length);
+    }
+
+    // Lado do cliente: resposta com os dados originais do bloco, que não pode passar de maxLength bytes
+    public static FileBlockAnswerMessage decompress(FileBlockAnswerMessage answer, String peer, int maxLength) throws IOException {
+        if (answer.getCodec() == null) {
+            return answer;
+        }
+        BlockCodec codec = forName(answer.getCodec());
+        if (codec == null) {
+            throw new IOException("Unknown block codec: " + answer.getCodec());
+        }
+        int rawLength = answer.getRawLength();
+        if (rawLength < 0 || rawLength > maxLength) {      // Validado antes de o codec alocar o bloco
+            throw new IOException("Invalid block length " + rawLength + " (expected at most " + maxLength + ")");
+        }
+        byte[] compressed = answer.getData();
+        long start = System.nanoTime();
+        byte[] data = codec.decompress(compressed, rawLength);
+        statsFor(peer).blockDecompressed(data.length, compressed.length, System.nanoTime() - start);
+        return answer.withData(data, null, data.length);
+    }
+
+    public static CompressionStats statsFor(String peer) {
+        return stats.computeIfAbsent(peer, p -> new CompressionStats());
+    }
+
+    // Contadores por nó ("ip:porta" para os blocos recebidos, ip para os enviados)
+    public static Map<String, CompressionStats> getStats() {
+        return new LinkedHashMap<>(stats);
+    }
+}
@@ -0,0 +1,77 @@
+package Download;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Contadores da compressão dos blocos trocados com um nó: bytes poupados na rede e tempo de CPU gasto
+public class CompressionStats {
+
+    private final AtomicLong blocksCompressed = new AtomicLong();   // Blocos enviados comprimidos
+    private final AtomicLong blocksSentRaw = new AtomicLong();      // Blocos que não ficavam mais pequenos
+    private final AtomicLong rawBytesSent = new AtomicLong();
+    private final AtomicLong wireBytesSent = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong blocksDecompressed = new AtomicLong();
+    private final AtomicLong rawBytesReceived = new AtomicLong();
+    private final AtomicLong wireBytesReceived = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    void blockCompressed(int rawBytes, int wireBytes, long nanos) {
+        blocksCompressed.incrementAndGet();
+        rawBytesSent.addAndGet(rawBytes);
+        wireBytesSent.addAndGet(wireBytes);
+        compressNanos.addAndGet(nanos);
+    }
+
+    // O tempo gasto a tentar também conta, mesmo que o bloco siga sem compressão
+    void blockSentRaw(int bytes, long nanos) {
+        blocksSentRaw.incrementAndGet();
+        rawBytesSent.addAndGet(bytes);
+        wireBytesSent.addAndGet(bytes);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void blockDecompressed(int rawBytes, int wireBytes, long nanos) {
+        blocksDecompressed.incrementAndGet();
+        rawBytesReceived.addAndGet(rawBytes);
+        wireBytesReceived.addAndGet(wireBytes);
+        decompressNanos.addAndGet(nanos);
+    }
+
+    public long getBlocksCompressed() {
+        return blocksCompressed.get();
+    }
+
+    public long getBlocksSentRaw() {
+        return blocksSentRaw.get();
+    }
+
+    public long getBlocksDecompressed() {
+        return blocksDecompressed.get();
+    }
+
+    // Bytes que deixaram de passar na rede, nos dois sentidos
+    public long getBytesSaved() {
+        return rawBytesSent.get() - wireBytesSent.get() + rawBytesReceived.get() - wireBytesReceived.get();
+    }
+
+    public double getCompressMillis() {
+        return compressNanos.get() / 1e6;
+    }
+
+    public double getDecompressMillis() {
+        return decompressNanos.get() / 1e6;
+    }
+
+    // Tamanho na rede / tamanho original dos blocos recebidos (1 sem compressão)
+    public double getReceivedRatio() {
+        long raw = rawBytesReceived.get();
+        return raw == 0 ? 1 : (double) wireBytesReceived.get() / raw;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed=%d raw=%d decompressed=%d saved=%d bytes cpu=%.1f/%.1f ms",
+                getBlocksCompressed(), getBlocksSentRaw(), getBlocksDecompressed(), getBytesSaved(),
+                getCompressMillis(), getDecompressMillis());
+    }
+}
@@ -0,0 +1,81 @@
+package Download;
+
+import Files.FileInfo;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate (java.util.zip) sem cabeçalho zlib: o tamanho e a integridade do bloco já são verificados pelo cliente
+// Cada thread reutiliza o seu Deflater/Inflater em vez de alocar memória nativa por bloco
+public class DeflateBlockCodec implements BlockCodec {
+
+    public static final String NAME = "deflate";
+
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    public DeflateBlockCodec(int level) {
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    // A saída tem no máximo data.length - 1 bytes: se não couber, comprimir não compensa
+    @Override
+    public byte[] compress(byte[] data) {
+        if (data.length < 2) {
+            return null;
+        }
+        Deflater deflater = deflaters.get();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] output = new byte[data.length - 1];
+            int length = 0;
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(output, 0, result, 0, length);
+            return result;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int rawLength) throws IOException {
+        if (rawLength < 0 || rawLength > FileInfo.MAX_BLOCK_SIZE) {
+            throw new IOException("Invalid block length " + rawLength);
+        }
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.setInput(data);
+            byte[] output = new byte[rawLength];
+            int length = 0;
+            while (!inflater.finished() && length < rawLength) {
+                int read = inflater.inflate(output, length, rawLength - length);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += read;
+            }
+            if (length != rawLength || !inflater.finished()) {
+                throw new IOException("Compressed block does not decompress to " + rawLength + " bytes");
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed block: " + e.getMessage(), e);
+        } finally {
+            inflater.reset();
+        }
+    }
+}
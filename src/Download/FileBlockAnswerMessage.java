@@ -4,27 +4,61 @@ import java.io.Serializable;
 import java.util.Arrays;
 
 public final class FileBlockAnswerMessage implements Serializable {
+    private static final long serialVersionUID = -2686047025895890280L;    // Original; proof, codec e rawLength chegam a null/0 de nós anteriores
+
     private final String fileHash;
     private final String dtmUID;
     private final int blockId;
     private final byte[] data;
     private final String senderIP;  // Novo campo
     private final int senderPort;   // Novo campo
+    private final byte[] proof;     // Prova de Merkle do bloco (ver Files.MerkleTree)
+    private final String codec;     // Codec dos dados (ver BlockCodecs); null se não estão comprimidos
+    private final int rawLength;    // Tamanho do bloco antes da compressão
+
 
+    public FileBlockAnswerMessage(String fileHash, byte[] data, int blockId, String dtmUID, String senderIP, int senderPort, byte[] proof) {
+        this(fileHash, data, blockId, dtmUID, senderIP, senderPort, proof, null, data.length);
+    }
 
-    public FileBlockAnswerMessage(String fileHash, byte[] data, int blockId, String dtmUID, String senderIP, int senderPort) {
+    public FileBlockAnswerMessage(String fileHash, byte[] data, int blockId, String dtmUID, String senderIP, int senderPort, byte[] proof,
+                                  String codec, int rawLength) {
         this.fileHash = fileHash;
         this.dtmUID = dtmUID;
         this.blockId = blockId;
         this.data = Arrays.copyOf(data, data.length); // Evita alterações externas - Imutabilidade para maior segurança
         this.senderIP = senderIP;
         this.senderPort = senderPort;
+        this.proof = proof;
+        this.codec = codec;
+        this.rawLength = rawLength;
+    }
+
+    // A mesma resposta com os dados comprimidos ou descomprimidos
+    FileBlockAnswerMessage withData(byte[] data, String codec, int rawLength) {
+        return new FileBlockAnswerMessage(fileHash, data, blockId, dtmUID, senderIP, senderPort, proof, codec, rawLength);
     }
 
     public byte[] getData() {
         return Arrays.copyOf(data, data.length); // Evita modificações externas - Imutabilidade para maior segurança
     }
 
+    public byte[] getProof() {
+        return proof;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public int getRawLength() {
+        return rawLength;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
     public int getBlockId() {
         return blockId;
     }
@@ -0,0 +1,24 @@
+package Download;
+
+import java.io.Serializable;
+
+// Cancela um pedido de bloco ainda não servido (o bloco já chegou de outro nó ou o pedido expirou)
+public final class FileBlockCancelMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String dtmUID;
+    private final int blockId;
+
+    public FileBlockCancelMessage(String dtmUID, int blockId) {
+        this.dtmUID = dtmUID;
+        this.blockId = blockId;
+    }
+
+    public String getDtmUID() {
+        return dtmUID;
+    }
+
+    public int getBlockId() {
+        return blockId;
+    }
+}
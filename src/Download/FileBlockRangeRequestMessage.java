@@ -0,0 +1,52 @@
+package Download;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+// Pedido de vários blocos seguidos do mesmo ficheiro ("blocos first..first+count-1 do hash H") numa só mensagem
+// O servidor responde com um DownloadResult por bloco, pela ordem do intervalo; cada bloco pode ser cancelado
+// à parte (FileBlockCancelMessage), como se tivesse sido pedido sozinho
+public final class FileBlockRangeRequestMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int MAX_BLOCKS = 64;     // Blocos servidos por pedido, mesmo que o cliente peça mais
+
+    private final String fileHash;
+    private final String dtmUID;
+    private final int firstBlock;
+    private final int count;
+
+    public FileBlockRangeRequestMessage(String fileHash, String dtmUID, int firstBlock, int count) {
+        this.fileHash = fileHash;
+        this.dtmUID = dtmUID;
+        this.firstBlock = firstBlock;
+        this.count = count;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public String getDtmUID() {
+        return dtmUID;
+    }
+
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // Um pedido por bloco do intervalo (sem posições: o servidor usa o seu manifesto)
+    public List<FileBlockRequestMessage> toRequests() {
+        List<FileBlockRequestMessage> requests = new ArrayList<>();
+        int blocks = Math.max(0, Math.min(count, MAX_BLOCKS));
+        for (int i = 0; i < blocks; i++) {
+            requests.add(new FileBlockRequestMessage(null, null, fileHash, dtmUID, firstBlock + i));
+        }
+        return requests;
+    }
+}
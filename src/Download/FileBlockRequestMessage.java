@@ -1,13 +1,15 @@
 package Download;
 
-import Communication.GlobalConfig;
 import Files.FileBlockInfo;
+import Files.FileIndex;
 import Files.FileInfo;
 
 import java.io.File;
 import java.io.Serializable;
 
 public class FileBlockRequestMessage implements Serializable {
+    private static final long serialVersionUID = -3696351433970560527L;
+
     private final FileBlockInfo requestBlock;
     private final String fileName;
     private final String fileHash;
@@ -30,20 +32,38 @@ public class FileBlockRequestMessage implements Serializable {
         return dtmUID;
     }
 
+    public FileBlockInfo getRequestBlock() {
+        return requestBlock;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
     public String getFileHash() {
         return fileHash;
     }
 
-    public byte[] getBlock(){
-        GlobalConfig gc = GlobalConfig.getInstance();
-        File[] files = gc.getFilesInDirectory();
-        for (File file : files) {
-            FileInfo info = new FileInfo(file);
-            if (file.getName().equals(this.fileName)) {
-                return requestBlock.readFileBytesInRange(file);
-            }
+    // O ficheiro é resolvido diretamente pelo hash, sem listar o diretório nem comparar nomes; null se não é partilhado
+    // Quem serve o pedido resolve o ficheiro e o FileInfo uma vez e usa-os para o bloco e para a prova
+    public File findFile() {
+        return FileIndex.getInstance().getFileByHash(this.fileHash);
+    }
+
+    public byte[] getBlock(File file, FileInfo info) {
+        if (!hasBlock(info)) {
+            return null;
         }
-        return null;
+        return info.getBlock(blockID).readFileBytesInRange(file);   // Offsets do manifesto local
+    }
+
+    // Prova de Merkle do bloco pedido, para o destinatário o verificar à chegada
+    public byte[] getProof(FileInfo info) {
+        return hasBlock(info) ? info.getBlockProof(blockID) : null;
+    }
+
+    private boolean hasBlock(FileInfo info) {
+        return info != null && blockID >= 0 && blockID < info.blockNumber;
     }
 
 }
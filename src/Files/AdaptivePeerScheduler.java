@@ -0,0 +1,44 @@
+package Files;
+
+import Search.FileSearchResult;
+
+import java.util.List;
+
+// Escolhe o nó que deve entregar o bloco mais cedo, pela latência e débito medidos e pelos pedidos em espera
+// Os nós mais rápidos recebem mais blocos; nós sem amostras são experimentados primeiro
+public class AdaptivePeerScheduler extends PeerScheduler {
+
+    @Override
+    public String getName() {
+        return "adaptive";
+    }
+
+    @Override
+    protected FileSearchResult select(List<FileSearchResult> nodes, int blockSize) {
+        FileSearchResult best = null;
+        double bestMillis = Double.MAX_VALUE;
+        for (FileSearchResult node : nodes) {
+            PeerStats peer = statsOf(node);
+            if (!peer.hasSamples()) {
+                if (peer.getInFlight() == 0) {
+                    return node;    // Ainda não há medições deste nó: envia-lhe um bloco para o medir
+                }
+                continue;
+            }
+            double expected = peer.expectedMillis(blockSize);
+            if (expected < bestMillis) {
+                bestMillis = expected;
+                best = node;
+            }
+        }
+        if (best == null) {     // Nenhum nó com medições: distribui pelos pedidos em espera
+            best = nodes.get(0);
+            for (FileSearchResult node : nodes) {
+                if (statsOf(node).getInFlight() < statsOf(best).getInFlight()) {
+                    best = node;
+                }
+            }
+        }
+        return best;
+    }
+}
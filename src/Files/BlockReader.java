@@ -0,0 +1,177 @@
+package Files;
+
+import Communication.GlobalConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Leitura de blocos partilhada por todas as threads do servidor (singleton)
+// Mantém um conjunto limitado de FileChannels abertos (LRU) e usa leituras posicionais, que não alteram o estado do canal
+public class BlockReader {
+
+    private static BlockReader instance = null;
+
+    private final Map<String, PooledChannel> channels = new LinkedHashMap<>(16, 0.75f, true);   // Ordem de acesso (LRU)
+    private int openHandles = 0;    // Inclui canais já removidos do pool mas ainda em uso
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public static synchronized BlockReader getInstance() {
+        if (instance == null) {
+            instance = new BlockReader();
+        }
+        return instance;
+    }
+
+    private BlockReader() {
+    }
+
+    // Canal com contagem de referências: só é fechado quando sai do pool e nenhuma leitura o está a usar
+    private static class PooledChannel {
+        private final String path;
+        private final FileChannel channel;
+        private int references = 0;
+        private boolean evicted = false;
+
+        PooledChannel(String path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    public byte[] read(File file, long startByte, int length) throws IOException {
+        PooledChannel pooled = acquire(file);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            long position = startByte;
+            while (buffer.hasRemaining()) {
+                int read = pooled.channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file: " + file.getName());
+                }
+                position += read;
+            }
+            return buffer.array();
+        } finally {
+            release(pooled);
+        }
+    }
+
+    // Envia o bloco diretamente do ficheiro para o canal de destino (zero-copy quando o destino é um socket)
+    public void transferTo(File file, long startByte, int length, WritableByteChannel target) throws IOException {
+        transferTo(file, startByte, length, target, length);
+    }
+
+    // Idem, com cada transferTo limitado a chunkSize bytes (a unidade de transferência da ligação de dados)
+    public void transferTo(File file, long startByte, int length, WritableByteChannel target, int chunkSize) throws IOException {
+        PooledChannel pooled = acquire(file);
+        try {
+            long position = startByte;
+            long remaining = length;
+            while (remaining > 0) {
+                long sent = pooled.channel.transferTo(position, Math.min(remaining, chunkSize), target);
+                if (sent <= 0 && position >= pooled.channel.size()) {
+                    throw new IOException("Unexpected end of file: " + file.getName());
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        } finally {
+            release(pooled);
+        }
+    }
+
+    private synchronized PooledChannel acquire(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        PooledChannel pooled = channels.get(path);
+        if (pooled != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            pooled = new PooledChannel(path, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+            openHandles++;
+            channels.put(path, pooled);
+            evictExcess();
+        }
+        pooled.references++;
+        return pooled;
+    }
+
+    private synchronized void release(PooledChannel pooled) {
+        pooled.references--;
+        if (pooled.evicted && pooled.references == 0) {
+            close(pooled);
+        }
+    }
+
+    private void evictExcess() {
+        int maxOpenFiles = Math.max(1, GlobalConfig.getInstance().getMaxOpenFiles());
+        while (channels.size() > maxOpenFiles) {
+            PooledChannel eldest = channels.values().iterator().next();
+            channels.remove(eldest.path);
+            evictions.incrementAndGet();
+            retire(eldest);
+        }
+    }
+
+    // Fecha o canal de um ficheiro que mudou ou deixou de ser partilhado
+    public synchronized void invalidate(String path) {
+        PooledChannel pooled = channels.remove(path);
+        if (pooled != null) {
+            retire(pooled);
+        }
+    }
+
+    private void retire(PooledChannel pooled) {
+        pooled.evicted = true;
+        if (pooled.references == 0) {
+            close(pooled);
+        }
+    }
+
+    private void close(PooledChannel pooled) {
+        try {
+            pooled.channel.close();
+        } catch (IOException e) {
+            System.out.println("Could not close " + pooled.path + ": " + e.getMessage());
+        }
+        openHandles--;
+    }
+
+    // Estatísticas
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getOpenHandles() {
+        return openHandles;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BlockReader{hitRate=%.1f%%, hits=%d, misses=%d, evictions=%d, openHandles=%d}",
+                getHitRate() * 100, getHits(), getMisses(), getEvictions(), getOpenHandles());
+    }
+}
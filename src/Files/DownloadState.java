@@ -0,0 +1,51 @@
+package Files;
+
+import java.io.Serializable;
+import java.util.BitSet;
+
+// Estado de um download em curso guardado ao lado do ficheiro .part (<nome>.part.ser)
+// Permite retomar o download pedindo apenas os blocos que faltam
+public class DownloadState implements Serializable {
+    private static final long serialVersionUID = 2L;     // 2: fileSize em long
+
+    private final String name;
+    private final String fileHash;
+    private final long fileSize;
+    private final int blockSize;
+    private final BitSet completedBlocks;
+
+    public DownloadState(String name, String fileHash, long fileSize, int blockSize, BitSet completedBlocks) {
+        this.name = name;
+        this.fileHash = fileHash;
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.completedBlocks = completedBlocks;
+    }
+
+    // O estado só serve para o mesmo conteúdo dividido da mesma forma
+    public boolean matches(FileInfo fileInfo) {
+        return fileHash != null && fileHash.equals(fileInfo.filehash)
+                && fileSize == fileInfo.fileSize && blockSize == fileInfo.blocksize;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public BitSet getCompletedBlocks() {
+        return completedBlocks;
+    }
+
+    public int getBlockCount() {
+        return FileInfo.countBlocks(fileSize, blockSize);
+    }
+
+    public int getProgress() {
+        int blocks = getBlockCount();
+        return blocks == 0 ? 100 : (int) ((long) completedBlocks.cardinality() * 100 / blocks);
+    }
+}
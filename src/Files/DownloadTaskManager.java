@@ -1,19 +1,34 @@
 package Files;
 
+import Client.BulkDataClient;
 import Client.ClientManager;
 import Client.ClientThread;
 import Communication.Command;
+import Communication.GlobalConfig;
+import Communication.NodeThreads;
 import Download.FileBlockAnswerMessage;
+import Download.FileBlockCancelMessage;
+import Download.FileBlockRangeRequestMessage;
 import Download.FileBlockRequestMessage;
 import Search.FileSearchResult;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class DownloadTaskManager extends Thread {
+public class DownloadTaskManager implements Runnable {
+    private static final int MAX_CONCURRENT_DOWNLOADS = 5;
+    private static final int MAX_REQUESTS_PER_BLOCK = 3;     // Pedidos simultâneos do mesmo bloco na fase final
+    private static final long SUPERVISION_INTERVAL_MILLIS = 100;
+    private static final int MAX_BAD_BLOCKS = 3;    // Blocos inválidos até um nó deixar de ser usado neste download
+    private static final int INITIAL_BATCH_BLOCKS = 4;        // Lote pedido a um nó ainda sem medições
+    private static final long BATCH_TARGET_MILLIS = 250;     // Tempo que um nó deve levar a entregar um lote
+
     private final ClientManager clientManager;
     private final FileInfo fileInfo;
     private final List<FileSearchResult> availableNodes;
@@ -26,8 +41,30 @@ public class DownloadTaskManager extends Thread {
 
     // Estruturas para controle de blocos
     private final Queue<Integer> pendingBlocks = new ConcurrentLinkedQueue<>();
-    private final Map<Integer, Boolean> inProgressBlocks = new ConcurrentHashMap<>();
-    private final Map<Integer, FileBlockAnswerMessage> completedBlocks = new ConcurrentHashMap<>();
+    private final Set<Integer> receivedBlocks = ConcurrentHashMap.newKeySet();
+
+    // Pedidos sem resposta por bloco (mais do que um na fase final) e falhas de cada bloco, guardados pelo lock
+    private final Map<Integer, List<BlockRequest>> sentRequests = new HashMap<>();
+    private final Map<Integer, Integer> blockFailures = new HashMap<>();
+    private volatile boolean failed = false;
+    private volatile boolean finished = false;     // Terminado e com o estado libertado (ver retire)
+
+    // Verificação dos blocos: raiz da árvore de Merkle (filehash) e folhas dos blocos já verificados
+    private byte[] rootHash;
+    private volatile byte[] leafHashes;
+    private final BitSet verifiedBlocks = new BitSet();     // Guardado pelo lock
+    private final Map<Integer, Set<String>> rejectedNodes = new HashMap<>();    // Nós que enviaram o bloco errado, guardado pelo lock
+    private final Set<String> bannedNodes = ConcurrentHashMap.newKeySet();
+
+    // Ficheiro temporário pré-alocado: cada bloco é escrito na sua posição assim que chega
+    private PartialDownload partialDownload;
+
+    // Modo bulk: blocos recebidos por uma ligação de dados por nó, lidos para memória e verificados como os restantes
+    private final boolean bulkTransfer = GlobalConfig.getInstance().isBulkTransfer();
+    private final Map<String, BulkDataClient> bulkClients = new ConcurrentHashMap<>();
+
+    // Escolha do nó para cada bloco
+    private final PeerScheduler scheduler = PeerScheduler.create(GlobalConfig.getInstance().getPeerScheduler());
 
     // Estatísticas e listeners
     private final Map<String, Integer> blocksPerNode = new ConcurrentHashMap<>();
@@ -41,33 +78,67 @@ public class DownloadTaskManager extends Thread {
         this.availableNodes = nodes;
     }
 
+    // Inicia o download numa thread própria (de plataforma ou virtual, ver NodeThreads)
+    public void start() {
+        NodeThreads.start("download-" + fileInfo.name, this);
+    }
+
     @Override
     public void run() {
-        System.out.println("Download iniciado para: " + fileInfo.name);
-        totalTime = System.currentTimeMillis();
-        for (int i = 0; i < fileInfo.blockNumber; i++) {        // Inicializa a queue de blocos
-            pendingBlocks.add(i);
-        }
-        List<Thread> downloadThreads = getThreads();
-        downloadThreads.forEach(thread -> {        // Aguarda o término das threads
+        try {
+            System.out.println("Download iniciado para: " + fileInfo.name);
+            totalTime = System.currentTimeMillis();
             try {
-                thread.join();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                rootHash = MerkleTree.fromHex(fileInfo.filehash);
+            } catch (RuntimeException e) {
+                System.out.println("Invalid file hash for " + fileInfo.name + ": " + fileInfo.filehash);
+                failed = true;
+                return;
             }
-        });
-        new Thread(this::writeFileWithLock).start();        // **Escrita com Condition**
+            leafHashes = new byte[fileInfo.blockNumber * MerkleTree.HASH_SIZE];
+            try {
+                partialDownload = new PartialDownload(fileInfo);
+            } catch (IOException e) {
+                System.out.println("Could not create temporary file for " + fileInfo.name + ": " + e.getMessage());
+                failed = true;
+                return;
+            }
+            BitSet completed = partialDownload.getCompletedBlocks();    // Blocos de um download anterior interrompido
+            for (int i = 0; i < fileInfo.blockNumber; i++) {        // Inicializa a queue de blocos
+                if (completed.get(i)) {
+                    receivedBlocks.add(i);
+                } else {
+                    pendingBlocks.add(i);
+                }
+            }
+            if (partialDownload.isResumed()) {
+                System.out.println("Download retomado: " + receivedBlocks.size() + " de " + fileInfo.blockNumber + " blocos já descarregados");
+                notifyListeners(receivedBlocks.size());
+            }
+            List<Thread> downloadThreads = getThreads();
+            superviseRequests();
+            downloadThreads.forEach(thread -> {        // Aguarda o término das threads
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            bulkClients.values().forEach(BulkDataClient::close);
+            writeFileWithLock();        // **Escrita com Condition**
+        } finally {
+            retire();
+        }
     }
 
     private List<Thread> getThreads() {
         List<Thread> downloadThreads = new ArrayList<>();
-        int MAX_CONCURRENT_DOWNLOADS = 5;
         for (int i = 0; i < MAX_CONCURRENT_DOWNLOADS; i++) {
-            Thread thread = new Thread(() -> {
-                while (!pendingBlocks.isEmpty()) { // Processa até a fila esvaziar
-                    Integer blockId = pendingBlocks.poll();
-                    if (blockId != null) {
-                        processSingleBlock(blockId);
+            Thread thread = NodeThreads.create("download-" + fileInfo.name + "-" + i, () -> {
+                while (!isFinished()) { // Processa até todos os blocos chegarem
+                    List<BlockRequest> batch = nextBatch();
+                    if (batch != null) {
+                        processBatch(batch);
                     }
                 }
             });
@@ -77,46 +148,524 @@ public class DownloadTaskManager extends Thread {
         return downloadThreads;
     }
 
-    private void processSingleBlock(Integer blockId) {
-        try {
-            FileSearchResult node = availableNodes.get(new Random().nextInt(availableNodes.size()));
-            ClientThread thread = new ClientThread(clientManager, node.getIp(), node.getPort());
-            // CORREÇÃO: Enviar FileBlockRequestMessage, não AnswerMessage!
-            thread.sendObject(
-                    Command.DownloadMessage,
-                    new FileBlockRequestMessage(
-                            fileInfo.fileBlockManagers.get(blockId),
-                            fileInfo.name, // NOME DO FICHEIRO ADICIONADO
-                            fileInfo.filehash,
-                            uid,
-                            blockId
-                    )
-            );
+    private boolean isFinished() {
+        return finished || failed || receivedBlocks.size() == fileInfo.blockNumber;
+    }
+
+    // Próximos pedidos a enviar: um bloco da fila, com os blocos seguintes para o mesmo nó (ver extendBatch),
+    // ou, na fase final, uma cópia de um pedido ainda sem resposta
+    // O nó é escolhido e os pedidos registados sob o lock, para duas threads não duplicarem o mesmo pedido
+    private List<BlockRequest> nextBatch() {
+        lock.lock();
+        try {
+            while (!isFinished()) {
+                Integer blockId = pendingBlocks.poll();
+                if (blockId != null) {
+                    if (!receivedBlocks.contains(blockId)) {
+                        BlockRequest request = registerRequest(blockId, availableNodes);
+                        if (request == null) {
+                            abortDownload("no node left with a valid copy of block " + blockId);
+                            return null;
+                        }
+                        return extendBatch(request);
+                    }
+                    continue;
+                }
+                BlockRequest hedge = endGameRequest();
+                if (hedge != null) {
+                    return List.of(hedge);
+                }
+                blocksAvailable.await(SUPERVISION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = true;
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Fase final: com poucos blocos em falta, cada um é pedido também a outros nós e vale a primeira resposta
+    private BlockRequest endGameRequest() {
+        if (sentRequests.isEmpty() || sentRequests.size() > GlobalConfig.getInstance().getEndGameBlocks()) {
+            return null;
+        }
+        int maxRequests = Math.min(MAX_REQUESTS_PER_BLOCK, availableNodes.size());
+        for (Map.Entry<Integer, List<BlockRequest>> entry : sentRequests.entrySet()) {
+            List<BlockRequest> requests = entry.getValue();
+            if (requests.size() >= maxRequests) {
+                continue;
+            }
+            List<FileSearchResult> others = new ArrayList<>(availableNodes);
+            requests.forEach(request -> others.remove(request.node));
+            BlockRequest hedge = registerRequest(entry.getKey(), others);
+            if (hedge != null) {
+                System.out.println("End game: requesting block " + entry.getKey() + " again");
+                return hedge;
+            }
+        }
+        return null;
+    }
+
+    // Devolve null se nenhum dos nós pode receber o pedido (todos enviaram dados inválidos)
+    private BlockRequest registerRequest(int blockId, List<FileSearchResult> nodes) {
+        Set<String> rejected = rejectedNodes.getOrDefault(blockId, Collections.emptySet());
+        List<FileSearchResult> candidates = new ArrayList<>();
+        for (FileSearchResult node : nodes) {
+            String nodeKey = PeerScheduler.nodeKey(node);
+            if (!bannedNodes.contains(nodeKey) && !rejected.contains(nodeKey)) {
+                candidates.add(node);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        FileSearchResult node = scheduler.choose(candidates, fileInfo.getBlockLength(blockId));
+        BlockRequest request = new BlockRequest(blockId, node);
+        sentRequests.computeIfAbsent(blockId, k -> new ArrayList<>()).add(request);
+        return request;
+    }
+
+    // Junta ao pedido os blocos seguintes da fila, pedidos ao mesmo nó numa só mensagem (DownloadRange)
+    // Só blocos consecutivos e que o nó pode enviar; chamado com o lock
+    private List<BlockRequest> extendBatch(BlockRequest first) {
+        List<BlockRequest> batch = new ArrayList<>();
+        batch.add(first);
+        if (bulkTransfer) {
+            return batch;     // As ligações de dados pedem um bloco de cada vez
+        }
+        int size = batchSize(first.nodeKey);
+        int nextBlock = first.blockId + 1;
+        while (batch.size() < size) {
+            Integer blockId = pendingBlocks.peek();
+            if (blockId == null || blockId != nextBlock || receivedBlocks.contains(blockId)
+                    || rejectedNodes.getOrDefault(blockId, Collections.emptySet()).contains(first.nodeKey)) {
+                break;
+            }
+            pendingBlocks.poll();
+            BlockRequest request = new BlockRequest(blockId, first.node);
+            scheduler.onRequestSent(first.nodeKey);
+            sentRequests.computeIfAbsent(blockId, k -> new ArrayList<>()).add(request);
+            batch.add(request);
+            nextBlock++;
+        }
+        return batch;
+    }
+
+    // Blocos que o nó entrega em cerca de BATCH_TARGET_MILLIS, segundo o débito medido (entre 1 e p2p.maxBatchBlocks)
+    // Um nó lento ou com falhas recebe pedidos de um bloco, para não ficar com muitos blocos presos; o lote também
+    // não passa da parte do nó nos blocos que faltam, para os outros nós não ficarem sem trabalho
+    private int batchSize(String nodeKey) {
+        GlobalConfig gc = GlobalConfig.getInstance();
+        int max = Math.min(gc.getMaxBatchBlocks(), gc.getRequestWindow());
+        int remaining = fileInfo.blockNumber - receivedBlocks.size() - sentRequests.size();
+        max = Math.min(max, Math.max(1, remaining / Math.max(1, availableNodes.size())));
+        PeerStats stats = scheduler.statsOf(nodeKey);
+        if (max <= 1 || stats.getFailures() > 0) {
+            return 1;
+        }
+        if (!stats.hasSamples()) {
+            return Math.min(INITIAL_BATCH_BLOCKS, max);
+        }
+        long blocks = (long) (stats.getBytesPerSecond() * BATCH_TARGET_MILLIS / 1000 / fileInfo.blocksize);
+        return (int) Math.max(1, Math.min(blocks, max));
+    }
+
+    // Retira o pedido dos pedidos sem resposta; devolve false se já tinha expirado ou sido cancelado
+    private boolean removeRequest(BlockRequest request) {
+        lock.lock();
+        try {
+            List<BlockRequest> requests = sentRequests.get(request.blockId);
+            if (requests == null || !requests.remove(request)) {
+                return false;
+            }
+            if (requests.isEmpty()) {
+                sentRequests.remove(request.blockId);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Um lote de vários blocos segue num só DownloadRange, se o nó o suportar; senão cada bloco segue sozinho
+    private void processBatch(List<BlockRequest> batch) {
+        if (batch.size() == 1) {
+            processSingleBlock(batch.get(0));
+            return;
+        }
+        FileSearchResult node = batch.get(0).node;
+        ClientThread thread;
+        try {
+            thread = clientManager.getPeerConnection(node.getIp(), node.getPort());
+        } catch (IOException e) {
+            batchFailed(batch);
+            return;
+        }
+        if (!thread.supportsRangeRequests()) {
+            batch.forEach(this::processSingleBlock);
+            return;
+        }
+        int window = thread.getRequestWindowSize();
+        for (int i = 0; i < batch.size(); i += window) {   // O lote nunca pede mais lugares do que a janela tem
+            sendRange(thread, batch.subList(i, Math.min(batch.size(), i + window)));
+        }
+    }
+
+    private void sendRange(ClientThread thread, List<BlockRequest> batch) {
+        List<String> keys = new ArrayList<>();
+        for (BlockRequest request : batch) {
+            request.connection = thread;
+            keys.add(request.key());
+        }
+        try {
+            thread.acquireRequestSlots(keys);
+        } catch (InterruptedException e) {
+            batchFailed(batch);
+            return;
+        }
+        for (BlockRequest request : batch) {
+            if (!isOutstanding(request)) {      // Algum expirou enquanto esperava pela janela: segue bloco a bloco
+                keys.forEach(thread::releaseRequestSlot);
+                batch.stream().filter(this::isOutstanding).forEach(this::processSingleBlock);
+                return;
+            }
+        }
+        Batch sent = new Batch();
+        long now = System.nanoTime();
+        for (BlockRequest request : batch) {
+            request.sentAt = now;
+            request.batch = sent;
+        }
+        try {
+            thread.sendObject(Command.DownloadRange,
+                    new FileBlockRangeRequestMessage(fileInfo.filehash, uid, batch.get(0).blockId, batch.size()));
         } catch (IOException | InterruptedException e) {
+            keys.forEach(thread::releaseRequestSlot);
+            thread.close();     // A ligação falhou: o pool abre outra no próximo pedido
+            batchFailed(batch);
+        }
+    }
+
+    private void batchFailed(List<BlockRequest> batch) {
+        for (BlockRequest request : batch) {
+            if (removeRequest(request)) {
+                requestFailed(request);
+            }
+        }
+    }
+
+    private void processSingleBlock(BlockRequest request) {
+        int blockId = request.blockId;
+        FileSearchResult node = request.node;
+        try {
+            if (bulkTransfer && processBulkBlock(request)) {
+                return;
+            }
+            // Ligação persistente ao nó: vários pedidos seguem na mesma ligação sem esperar pelas respostas
+            ClientThread thread = clientManager.getPeerConnection(node.getIp(), node.getPort());
+            request.connection = thread;
+            thread.acquireRequestSlot(request.key());
+            if (!isOutstanding(request)) {      // Expirou ou foi cancelado enquanto esperava pela janela
+                thread.releaseRequestSlot(request.key());
+                return;
+            }
+            request.sentAt = System.nanoTime();
+            try {
+                // CORREÇÃO: Enviar FileBlockRequestMessage, não AnswerMessage!
+                thread.sendObject(
+                        Command.DownloadMessage,
+                        new FileBlockRequestMessage(
+                                fileInfo.getBlock(blockId),
+                                fileInfo.name, // NOME DO FICHEIRO ADICIONADO
+                                fileInfo.filehash,
+                                uid,
+                                blockId
+                        )
+                );
+            } catch (IOException e) {
+                thread.releaseRequestSlot(request.key());
+                thread.close();     // A ligação falhou: o pool abre outra no próximo pedido
+                throw e;
+            }
+        } catch (IOException | InterruptedException e) {
+            if (removeRequest(request)) {
+                requestFailed(request);
+            }
+        }
+    }
+
+    private boolean isOutstanding(BlockRequest request) {
+        lock.lock();
+        try {
+            List<BlockRequest> requests = sentRequests.get(request.blockId);
+            return requests != null && requests.contains(request);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Recebe o bloco pela ligação de dados do nó; devolve false se o bloco deve seguir pelo caminho das mensagens
+    private boolean processBulkBlock(BlockRequest request) throws IOException {
+        String nodeKey = request.nodeKey;
+        BulkDataClient client = bulkClients.get(nodeKey);
+        if (client == null) {
+            client = new BulkDataClient(request.node.getIp(), request.node.getPort());
+            BulkDataClient previous = bulkClients.putIfAbsent(nodeKey, client);
+            if (previous != null) {
+                client.close();
+                client = previous;
+            }
+        }
+        request.bulkClient = client;
+        byte[] data = new byte[fileInfo.getBlockLength(request.blockId)];
+        byte[] proof;
+        request.sentAt = System.nanoTime();
+        try {
+            proof = client.receiveBlock(fileInfo.filehash, request.blockId, ByteBuffer.wrap(data));
+            if (proof == null) {
+                request.bulkClient = null;
+                return false;
+            }
+        } catch (IOException e) {
+            bulkClients.remove(nodeKey, client);
+            client.close();
+            throw e;
+        }
+        // Se o pedido já expirou, o bloco é aproveitado na mesma mas sem contar para as estatísticas
+        acceptBlock(removeRequest(request) ? request : null, request.blockId, data, proof, nodeKey);
+        return true;
+    }
+
+    // O nó recusou o pedido por falta de créditos: o nó entra em backoff e o bloco volta à fila,
+    // sem contar como falha do bloco (o bloco não tem nada de errado)
+    public void requestRefused(int blockId, ClientThread connection) {
+        BlockRequest request = takeRequest(blockId, connection);
+        if (request == null) {
+            return;
+        }
+        System.out.println("Block " + blockId + " refused by " + request.nodeKey + " (no credits)");
+        scheduler.onRequestFailed(request.nodeKey);
+        lock.lock();
+        try {
+            if (!failed && !receivedBlocks.contains(blockId) && !sentRequests.containsKey(blockId)) {
+                pendingBlocks.add(blockId);
+                blocksAvailable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Resposta a um pedido enviado pela ligação 'connection'
+    public void addFileblock(int blockId, FileBlockAnswerMessage fileBlock, ClientThread connection) {
+        BlockRequest request = takeRequest(blockId, connection);
+        String nodeKey = request != null ? request.nodeKey : fileBlock.getSenderIP() + ":" + fileBlock.getSenderPort();
+        acceptBlock(request, blockId, fileBlock.getData(), fileBlock.getProof(), nodeKey);
+    }
+
+    // Verifica o bloco e escreve-o na sua posição; um bloco inválido nunca chega ao ficheiro
+    private void acceptBlock(BlockRequest request, int blockId, byte[] data, byte[] proof, String nodeKey) {
+        if (finished || receivedBlocks.contains(blockId)) {
+            if (request != null) {
+                scheduler.onRequestCancelled(nodeKey);
+            }
+            return;     // Cópia de um bloco que já chegou de outro nó (ou resposta depois do fim do download)
+        }
+        if (!verifyBlock(blockId, data, proof)) {
+            System.out.println("Block " + blockId + " from " + nodeKey + " failed verification");
+            if (request != null) {
+                badBlock(request);
+            }
+            return;
+        }
+        try {
+            partialDownload.write((long) blockId * fileInfo.blocksize, data);    // O bloco não fica em memória depois de escrito
+        } catch (IOException e) {
+            System.out.println("Could not write block " + blockId + ": " + e.getMessage());
+            if (request != null) {
+                requestFailed(request);
+            }
+            return;
+        }
+        if (request != null) {
+            long now = System.nanoTime();
+            // Num lote, a latência de cada bloco conta a partir do bloco anterior do mesmo lote
+            long start = request.batch == null ? request.sentAt : request.batch.arrived(request.sentAt, now);
+            scheduler.onBlockReceived(nodeKey, data.length, now - start);
+        }
+        blockReceived(blockId, nodeKey);
+    }
+
+    // Verifica o hash do bloco com a prova de Merkle enviada pelo nó, contra a raiz (filehash)
+    private boolean verifyBlock(int blockId, byte[] data, byte[] proof) {
+        if (data == null || data.length != fileInfo.getBlockLength(blockId)) {
+            return false;
+        }
+        byte[] leaves = leafHashes;     // null depois de retire
+        byte[] leaf = MerkleTree.hashBlock(data, 0, data.length);
+        if (leaves == null || !MerkleTree.verify(leaf, blockId, fileInfo.blockNumber, proof, rootHash)) {
+            return false;
+        }
+        System.arraycopy(leaf, 0, leaves, blockId * MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
+        return true;
+    }
+
+    // O nó enviou dados inválidos: o bloco é pedido a outro nó e, à terceira vez, o nó deixa de ser usado
+    private void badBlock(BlockRequest request) {
+        int badBlocks = scheduler.onBadBlock(request.nodeKey);
+        lock.lock();
+        try {
+            rejectedNodes.computeIfAbsent(request.blockId, k -> new HashSet<>()).add(request.nodeKey);
+            if (badBlocks >= MAX_BAD_BLOCKS && bannedNodes.add(request.nodeKey)) {
+                System.out.println("Node " + request.nodeKey + " sent " + badBlocks + " invalid blocks, no longer used for " + fileInfo.name);
+            }
+        } finally {
+            lock.unlock();
+        }
+        requestFailed(request);
+    }
+
+    private BlockRequest takeRequest(int blockId, ClientThread connection) {
+        lock.lock();
+        try {
+            List<BlockRequest> requests = sentRequests.get(blockId);
+            if (requests == null) {
+                return null;
+            }
+            for (BlockRequest request : requests) {
+                if (request.connection == connection) {
+                    removeRequest(request);
+                    return request;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // O primeiro nó a responder ganha: os outros pedidos do mesmo bloco são cancelados
+    private void blockReceived(int blockId, String nodeKey) {
+        if (!markBlockReceived(blockId, nodeKey)) {
+            return;
+        }
+        List<BlockRequest> others;
+        lock.lock();
+        try {
+            others = sentRequests.remove(blockId);
+        } finally {
+            lock.unlock();
+        }
+        if (others != null) {
+            others.forEach(request -> {
+                scheduler.onRequestCancelled(request.nodeKey);
+                cancelRequest(request);
+            });
+        }
+    }
+
+    // Só os pedidos por mensagem são cancelados no nó; uma cópia pela ligação de dados termina normalmente
+    private void cancelRequest(BlockRequest request) {
+        ClientThread connection = request.connection;
+        if (connection == null) {
+            return;
+        }
+        connection.releaseRequestSlot(request.key());
+        try {
+            connection.sendObject(Command.CancelDownload, new FileBlockCancelMessage(uid, request.blockId));
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Could not cancel block " + request.blockId + ": " + e.getMessage());
+        }
+    }
+
+    // Pedido falhado ou sem resposta dentro do prazo: penaliza o nó e volta a pôr o bloco na fila
+    // Se o bloco falhar demasiadas vezes o download é abandonado
+    private void requestFailed(BlockRequest request) {
+        scheduler.onRequestFailed(request.nodeKey);
+        lock.lock();
+        try {
+            int blockId = request.blockId;
+            if (failed || receivedBlocks.contains(blockId) || sentRequests.containsKey(blockId)) {
+                return;     // O bloco já chegou ou ainda há outro pedido a caminho
+            }
+            int failures = blockFailures.merge(blockId, 1, Integer::sum);
+            if (failures > GlobalConfig.getInstance().getBlockRetries()) {
+                abortDownload("block " + blockId + " failed " + failures + " times");
+                return;
+            }
+            pendingBlocks.add(blockId); // Recoloca o bloco na fila
+            blocksAvailable.signal();  // Notifica outras threads
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com o lock
+    private void abortDownload(String reason) {
+        System.out.println("Aborting download of " + fileInfo.name + ": " + reason);
+        failed = true;
+        downloadComplete.signalAll();
+        blocksAvailable.signalAll();
+    }
+
+    // Verifica periodicamente os prazos dos pedidos até o download terminar
+    private void superviseRequests() {
+        while (!isFinished()) {
+            List<BlockRequest> expired = new ArrayList<>();
             lock.lock();
             try {
-                pendingBlocks.add(blockId); // Recoloca o bloco na fila
-                blocksAvailable.signal();  // Notifica outras threads
+                downloadComplete.await(SUPERVISION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                long now = System.nanoTime();
+                long timeout = TimeUnit.MILLISECONDS.toNanos(GlobalConfig.getInstance().getBlockTimeout());
+                for (List<BlockRequest> requests : sentRequests.values()) {
+                    for (BlockRequest request : requests) {
+                        if (now - request.sentAt > timeout) {
+                            expired.add(request);
+                        }
+                    }
+                }
+                expired.forEach(this::removeRequest);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed = true;
             } finally {
                 lock.unlock();
             }
-        } finally {
-            inProgressBlocks.remove(blockId);
+            partialDownload.checkpoint(false);
+            for (BlockRequest request : expired) {
+                System.out.println("Block " + request.blockId + " timed out at " + request.nodeKey);
+                BulkDataClient bulkClient = request.bulkClient;
+                if (bulkClient != null) {
+                    bulkClients.remove(request.nodeKey, bulkClient);
+                    bulkClient.close();     // Desbloqueia a thread que está a receber o bloco
+                } else {
+                    cancelRequest(request);
+                }
+                requestFailed(request);
+            }
         }
     }
 
-    public void addFileblock(int blockId, FileBlockAnswerMessage fileBlock) {
+    private boolean markBlockReceived(int blockId, String nodeKey) {
         lock.lock();
         try {
-            completedBlocks.put(blockId, fileBlock);
+            if (!receivedBlocks.add(blockId)) {
+                return false;     // Bloco duplicado
+            }
+            partialDownload.markCompleted(blockId);
+            verifiedBlocks.set(blockId);
             // Atualiza as estatísticas por nó
-            String nodeKey = fileBlock.getSenderIP() + ":" + fileBlock.getSenderPort();
             blocksPerNode.merge(nodeKey, 1, Integer::sum);
 
-            notifyListeners(completedBlocks.size());     // Notificar  a GUI do progresso atual
-            if (completedBlocks.size() == fileInfo.blockNumber) {   // Sinaliza a Condition de conclusão apenas quando todos os blocos estiverem prontos
-                downloadComplete.signal();
+            notifyListeners(receivedBlocks.size());     // Notificar  a GUI do progresso atual
+            if (receivedBlocks.size() == fileInfo.blockNumber) {   // Sinaliza a Condition de conclusão apenas quando todos os blocos estiverem prontos
+                downloadComplete.signalAll();
+                blocksAvailable.signalAll();
             }
+            return true;
         } finally {
             lock.unlock();
         }
@@ -125,21 +674,67 @@ public class DownloadTaskManager extends Thread {
     private void writeFileWithLock() {
         lock.lock();
         try {
-            while (completedBlocks.size() < fileInfo.blockNumber) {
-                downloadComplete.await(); // Aguarda sinal
-                // Verificação adicional para evitar loop infinito
-                if (completedBlocks.size() == fileInfo.blockNumber) {
-                    break;
-                }
+            while (receivedBlocks.size() < fileInfo.blockNumber && !failed) {
+                downloadComplete.await(SUPERVISION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS); // Aguarda sinal, sem esperar para sempre
             }
-            fileInfo.writeFile(new TreeMap<>(completedBlocks));
-            System.out.println("Download concluído: " + fileInfo.name);
-            totalTime = System.currentTimeMillis() - totalTime;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+            failed = true;
+        } finally {
+            lock.unlock();
+        }
+        if (failed) {
+            partialDownload.suspend();      // Os blocos já recebidos ficam para quando o download for repetido
+            System.out.println("Download falhou: " + fileInfo.name + " (pode ser retomado)");
+            return;
+        }
+        // Com todos os blocos presentes já ninguém mexe nas folhas: a verificação e o rename correm sem o lock
+        // (o lock só volta a ser tomado em retire, para marcar o download como terminado)
+        try {
+            if (!verifyRoot()) {
+                partialDownload.abort();
+                System.out.println("Download falhou: " + fileInfo.name + " não corresponde ao hash " + fileInfo.filehash);
+                return;
+            }
+            partialDownload.complete();     // Rename atómico para o diretório partilhado
+            // Os blocos foram todos verificados: o ficheiro entra no índice sem voltar a ser lido
+            fileInfo.setBlockHashes(leafHashes);
+            FileIndex.getInstance().register(partialDownload.getOutputFile(), fileInfo);
+            System.out.println("Download concluído: " + fileInfo.name);
+            totalTime = System.currentTimeMillis() - totalTime;
+        } catch (IOException e) {
+            System.out.println("Could not complete download of " + fileInfo.name + ": " + e.getMessage());
+        }
+    }
+
+    // Liberta o estado que só servia durante o download (um nó ligado muito tempo não acumula downloads acabados)
+    // Ficam as estatísticas mostradas pela interface
+    private void retire() {
+        lock.lock();
+        try {
+            pendingBlocks.clear();
+            receivedBlocks.clear();
+            sentRequests.clear();
+            blockFailures.clear();
+            rejectedNodes.clear();
+            verifiedBlocks.clear();
+            leafHashes = null;
+            finished = true;
         } finally {
             lock.unlock();
         }
+        clientManager.downloadFinished(this);
+    }
+
+    // Confirma a raiz da árvore com as folhas de todos os blocos, sem voltar a ler o ficheiro inteiro
+    // Só os blocos de um download anterior (retomado), que não foram verificados à chegada, são lidos do disco
+    private boolean verifyRoot() throws IOException {
+        for (int blockId = verifiedBlocks.nextClearBit(0); blockId < fileInfo.blockNumber; blockId = verifiedBlocks.nextClearBit(blockId + 1)) {
+            FileBlockInfo block = fileInfo.getBlock(blockId);
+            byte[] data = partialDownload.read(block.startByte, block.getLength());
+            System.arraycopy(MerkleTree.hashBlock(data, 0, data.length), 0, leafHashes, blockId * MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
+        }
+        return MessageDigest.isEqual(new MerkleTree(leafHashes).root(), rootHash);
     }
 
     private void notifyListeners(int blocksDownloaded) {
@@ -154,6 +749,24 @@ public class DownloadTaskManager extends Thread {
         return new HashMap<>(blocksPerNode);
     }
 
+    // Latência e débito medidos para cada nó
+    public Map<String, PeerStats> getPeerStats() {
+        return scheduler.getStats();
+    }
+
+    // Tamanho que o bloco tem de ter ao chegar; 0 para um bloco que o ficheiro não tem
+    public int getBlockLength(int blockId) {
+        return blockId >= 0 && blockId < fileInfo.blockNumber ? fileInfo.getBlockLength(blockId) : 0;
+    }
+
+    public String getSchedulerName() {
+        return scheduler.getName();
+    }
+
+    public boolean hasFailed() {
+        return failed;
+    }
+
     public float getTotalTime() {
         return (float) totalTime / 1000;
     }
@@ -170,5 +783,37 @@ public class DownloadTaskManager extends Thread {
     public void addListener(DownloadTaskManagerListener listener) {
         listeners.add(listener);
     }
-}
 
+    // Pedido de um bloco a um nó, ainda sem resposta
+    private class BlockRequest {
+        private final int blockId;
+        private final FileSearchResult node;
+        private final String nodeKey;
+        private volatile long sentAt = System.nanoTime();     // Conta para o prazo e para a latência
+        private volatile ClientThread connection;            // Ligação usada (pedidos por mensagem)
+        private volatile BulkDataClient bulkClient;          // Ligação de dados usada (modo bulk)
+        private volatile Batch batch;                        // Lote em que o bloco foi pedido (DownloadRange)
+
+        BlockRequest(int blockId, FileSearchResult node) {
+            this.blockId = blockId;
+            this.node = node;
+            this.nodeKey = PeerScheduler.nodeKey(node);
+        }
+
+        String key() {
+            return uid + ":" + blockId;
+        }
+    }
+
+    // Blocos pedidos num só DownloadRange: chegam uns a seguir aos outros pela mesma ligação
+    private static class Batch {
+        private long lastArrival;
+
+        // Início da medição da latência de um bloco que chegou em 'now' (a chegada do bloco anterior do lote)
+        synchronized long arrived(long sentAt, long now) {
+            long start = Math.max(sentAt, lastArrival);
+            lastArrival = now;
+            return start;
+        }
+    }
+}
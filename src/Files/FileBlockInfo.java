@@ -6,29 +6,67 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class FileBlockInfo implements Serializable {
-    public int startByte;
-    public int endByte;
+    private static final long serialVersionUID = -7145378641859256025L;
+    // Como no FileInfo: as posições originais em int continuam na serialização e as posições em long seguem à parte
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("startByte", int.class),
+            new ObjectStreamField("endByte", int.class),
+            new ObjectStreamField("fileName", String.class),
+            new ObjectStreamField("startOffset", long.class),
+            new ObjectStreamField("endOffset", long.class)
+    };
+    public long startByte;
+    public long endByte;
     public String fileName;
 
-    FileBlockInfo(File file, int startByte, int endByte) {
+    FileBlockInfo(File file, long startByte, long endByte) {
+        this(file.getName(), startByte, endByte);
+    }
+
+    public FileBlockInfo(String fileName, long startByte, long endByte) {
         this.startByte = startByte;
         this.endByte = endByte;
-        this.fileName = file.getName();
+        this.fileName = fileName;
+    }
+
+    // Um bloco tem no máximo FileInfo.MAX_BLOCK_SIZE bytes, mesmo que as posições passem dos 2 GB
+    public int getLength() {
+        return (int) (endByte - startByte);
     }
 
     public byte[] readFileBytesInRange(File file) {
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
-            int length = endByte - startByte ;
-            byte[] buffer = new byte[length];
-            randomAccessFile.seek(startByte);
-            randomAccessFile.readFully(buffer);
-            return buffer;
+        try {
+            return BlockReader.getInstance().read(file, startByte, getLength());   // Canal reutilizado do pool
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    // Posições acima de 2 GB não cabem nos campos int: um nó anterior recebe -1 e não consegue servir esse bloco
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        boolean fits = endByte <= Integer.MAX_VALUE;
+        fields.put("startByte", fits ? (int) startByte : -1);
+        fields.put("endByte", fits ? (int) endByte : -1);
+        fields.put("fileName", fileName);
+        fields.put("startOffset", startByte);
+        fields.put("endOffset", endByte);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        fileName = (String) fields.get("fileName", null);
+        if (fields.defaulted("startOffset")) {
+            startByte = fields.get("startByte", 0);
+            endByte = fields.get("endByte", 0);
+        } else {
+            startByte = fields.get("startOffset", 0L);
+            endByte = fields.get("endOffset", 0L);
+        }
+    }
+
     @Override
     public String toString(){    // StringBuilder para a representação hexadecimal
         return  "File: " + this.fileName + " Start: "+ this.startByte + " End: "+ this.endByte;
@@ -0,0 +1,374 @@
+package Files;
+
+import Communication.GlobalConfig;
+import Communication.DirectoryListener;
+import Search.NameIndex;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Índice local dos ficheiros partilhados (singleton)
+// Guarda o FileInfo de cada ficheiro e só volta a calcular o hash quando o tamanho ou a data de modificação mudam
+public class FileIndex implements DirectoryListener {
+
+    private static FileIndex instance = null;
+    private static final String INDEX_FILE_NAME = "index.ser";   // ".ser" é ignorado pelo DirectoryWatcher
+
+    private Map<String, IndexEntry> entries = new HashMap<>();   // Caminho absoluto -> entrada do índice
+    private final Map<String, String> pathsByHash = new HashMap<>();   // Hash -> caminho absoluto, para servir blocos em O(1)
+    private final NameIndex names = new NameIndex();     // Trigramas dos nomes, para as pesquisas
+    private String indexedPath;     // Diretório a que o índice carregado corresponde
+    private boolean dirty = false;  // Indica se há alterações ainda não persistidas
+
+    // Indexação em paralelo: ficheiros cujo hash está a ser calculado (fora do lock) e progresso da indexação em curso
+    private final Map<String, CompletableFuture<FileInfo>> hashing = new HashMap<>();
+    private ForkJoinPool indexPool;
+    private int indexedFiles = 0;
+    private int totalFiles = 0;
+    private final List<FileIndexListener> listeners = new CopyOnWriteArrayList<>();
+
+    public static synchronized FileIndex getInstance() {
+        if (instance == null) {
+            instance = new FileIndex();
+        }
+        return instance;
+    }
+
+    private FileIndex() {
+        GlobalConfig.getInstance().addDirectoryListener(this);     // O índice segue as alterações do diretório partilhado
+    }
+
+    private static class IndexEntry implements Serializable {
+        private static final long serialVersionUID = 1L;     // Índices gravados com outra versão são descartados e refeitos
+
+        private final long size;
+        private final long lastModified;
+        private final FileInfo info;
+        private final byte[] blockHashes;   // Folhas da árvore de Merkle (não fazem parte da serialização do FileInfo)
+
+        IndexEntry(long size, long lastModified, FileInfo info) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.info = info;
+            this.blockHashes = info.getBlockHashes();
+        }
+
+        boolean matches(File file) {
+            return file.length() == size && file.lastModified() == lastModified && blockHashes != null
+                    && info.blocksize == FileInfo.chooseBlockSize(size);    // Os limites do tamanho dos blocos podem ter mudado
+        }
+    }
+
+    // Devolve o FileInfo de um ficheiro, calculando o hash apenas se o ficheiro mudou desde a última vez
+    // O hash é calculado fora do lock, para as pesquisas e os pedidos de blocos não esperarem por outros ficheiros;
+    // se outra thread já está a calcular o mesmo ficheiro, espera por esse resultado
+    public FileInfo getFileInfo(File file) {
+        String key = file.getAbsolutePath();
+        CompletableFuture<FileInfo> pending;
+        boolean owner = false;
+        synchronized (this) {
+            ensureLoaded();
+            IndexEntry entry = entries.get(key);
+            if (entry != null && entry.matches(file)) {
+                return entry.info;
+            }
+            pending = hashing.get(key);
+            if (pending == null) {
+                pending = new CompletableFuture<>();
+                hashing.put(key, pending);
+                owner = true;
+            }
+        }
+        return owner ? index(file, key, pending) : pending.join();     // Espera fora do lock
+    }
+
+    private FileInfo index(File file, String key, CompletableFuture<FileInfo> pending) {
+        // O tamanho e a data são lidos antes do hash: se o ficheiro mudar durante a leitura, a entrada fica inválida
+        long size = file.length();
+        long lastModified = file.lastModified();
+        FileInfo info;
+        try {
+            info = new FileInfo(file);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                hashing.remove(key);
+            }
+            pending.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            hashing.remove(key);
+            IndexEntry previous = entries.put(key, new IndexEntry(size, lastModified, info));
+            names.add(key, info);
+            if (previous != null) {
+                pathsByHash.remove(previous.info.filehash, key);
+                BlockReader.getInstance().invalidate(key);    // O canal aberto pode apontar para o conteúdo antigo
+            }
+            if (info.filehash != null) {
+                pathsByHash.put(info.filehash, key);
+            }
+            dirty = true;
+        }
+        pending.complete(info);
+        return info;
+    }
+
+    // Indexa em segundo plano, em paralelo, os ficheiros novos ou alterados do diretório partilhado (ex.: no arranque do nó)
+    // Entretanto as pesquisas são respondidas com os ficheiros já indexados (ver searchNames)
+    public synchronized void indexInBackground() {
+        ensureLoaded();
+        List<File> stale = new ArrayList<>();
+        List<CompletableFuture<FileInfo>> reserved = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+        for (File file : GlobalConfig.getInstance().getFilesInDirectory()) {
+            present.add(file.getAbsolutePath());
+            reserveIfStale(file, stale, reserved);
+        }
+        removeMissing(present);     // Ficheiros apagados (ex.: enquanto o nó esteve parado)
+        if (stale.isEmpty()) {
+            save();
+            return;
+        }
+        submit(stale, reserved);
+    }
+
+    // Quem pedir um ficheiro reservado antes de a tarefa correr espera por ela (ver getFileInfo)
+    private void reserveIfStale(File file, List<File> stale, List<CompletableFuture<FileInfo>> reserved) {
+        String key = file.getAbsolutePath();
+        IndexEntry entry = entries.get(key);
+        if ((entry == null || !entry.matches(file)) && !hashing.containsKey(key)) {
+            CompletableFuture<FileInfo> pending = new CompletableFuture<>();
+            hashing.put(key, pending);
+            stale.add(file);
+            reserved.add(pending);
+        }
+    }
+
+    private void submit(List<File> stale, List<CompletableFuture<FileInfo>> reserved) {
+        totalFiles += stale.size();
+        if (indexPool == null) {
+            indexPool = new ForkJoinPool(Math.max(1, GlobalConfig.getInstance().getIndexThreads()));
+        }
+        System.out.println("Indexing " + stale.size() + " files");
+        indexPool.execute(() -> {
+            long start = System.currentTimeMillis();
+            new IndexTask(stale, reserved, 0, stale.size()).invoke();
+            System.out.println("Indexed " + stale.size() + " files in " + (System.currentTimeMillis() - start) + " ms");
+            synchronized (this) {
+                save();
+            }
+        });
+    }
+
+    // Eventos do DirectoryWatcher: só o ficheiro alterado é indexado ou removido, sem ler o diretório
+
+    @Override
+    public synchronized void onFileChanged(File file) {
+        ensureLoaded();
+        List<File> stale = new ArrayList<>();
+        List<CompletableFuture<FileInfo>> reserved = new ArrayList<>();
+        reserveIfStale(file, stale, reserved);
+        if (!stale.isEmpty()) {
+            submit(stale, reserved);
+        }
+    }
+
+    @Override
+    public synchronized void onFileDeleted(File file) {
+        ensureLoaded();
+        String key = file.getAbsolutePath();
+        IndexEntry removed = entries.remove(key);
+        if (removed == null) {
+            return;
+        }
+        pathsByHash.remove(removed.info.filehash, key);
+        names.remove(key);
+        BlockReader.getInstance().invalidate(key);
+        dirty = true;
+        save();
+    }
+
+    @Override
+    public void onRescan() {
+        indexInBackground();
+    }
+
+    // Divide a lista ao meio até restar um ficheiro por tarefa; as threads livres roubam as metades por fazer,
+    // por isso um ficheiro grande não atrasa a indexação dos restantes
+    @SuppressWarnings("serial")     // ForkJoinTask é Serializable, mas a tarefa nunca é serializada
+    private class IndexTask extends RecursiveAction {
+        private final List<File> files;
+        private final List<CompletableFuture<FileInfo>> results;
+        private final int from;
+        private final int to;
+
+        IndexTask(List<File> files, List<CompletableFuture<FileInfo>> results, int from, int to) {
+            this.files = files;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new IndexTask(files, results, from, middle), new IndexTask(files, results, middle, to));
+                return;
+            }
+            File file = files.get(from);
+            try {
+                index(file, file.getAbsolutePath(), results.get(from));
+            } catch (RuntimeException e) {
+                System.out.println("Could not index " + file.getName() + ": " + e.getMessage());
+            }
+            fileIndexed();
+        }
+    }
+
+    private void fileIndexed() {
+        int indexed;
+        int total;
+        synchronized (this) {
+            indexed = ++indexedFiles;
+            total = totalFiles;
+            if (indexed == total) {
+                indexedFiles = 0;
+                totalFiles = 0;
+            }
+        }
+        listeners.forEach(listener -> listener.onIndexProgress(indexed, total));
+    }
+
+    public void addListener(FileIndexListener listener) {
+        listeners.add(listener);
+    }
+
+    // Pesquisa pelo nome nos ficheiros já indexados, sem calcular hashes (ver NameIndex)
+    // Só os ficheiros encontrados são verificados no disco; os que mudaram ficam de fora até serem indexados de novo
+    public synchronized Map<FileInfo, Integer> searchNames(String query) {
+        ensureLoaded();
+        Map<FileInfo, Integer> found = names.search(query);
+        found.keySet().removeIf(info -> {
+            File file = new File(indexedPath + info.name);
+            IndexEntry entry = entries.get(file.getAbsolutePath());
+            return entry == null || entry.info != info || !entry.matches(file);
+        });
+        return found;
+    }
+
+    // Regista um ficheiro cujos blocos já foram verificados contra a raiz (ex.: download acabado), sem voltar a calculá-los
+    public synchronized void register(File file, FileInfo info) {
+        ensureLoaded();
+        String key = file.getAbsolutePath();
+        IndexEntry previous = entries.get(key);
+        if (previous != null) {
+            pathsByHash.remove(previous.info.filehash, key);
+            BlockReader.getInstance().invalidate(key);
+        }
+        entries.put(key, new IndexEntry(file.length(), file.lastModified(), info));
+        pathsByHash.put(info.filehash, key);
+        names.add(key, info);
+        dirty = true;
+        save();
+    }
+
+    // Resolve um hash para o ficheiro partilhado com esse conteúdo, sem listar o diretório
+    // Um hash ainda não indexado não é conhecido: os nós só o recebem nas pesquisas, que só anunciam ficheiros indexados
+    public File getFileByHash(String fileHash) {
+        if (fileHash == null) {
+            return null;
+        }
+        String path;
+        synchronized (this) {
+            ensureLoaded();
+            path = pathsByHash.get(fileHash);
+        }
+        if (path == null) {
+            return null;
+        }
+        File file = new File(path);
+        if (!file.isFile()) {
+            return null;
+        }
+        // Garante que o conteúdo ainda corresponde ao hash pedido (o ficheiro pode ter sido alterado)
+        FileInfo info = getFileInfo(file);
+        return fileHash.equals(info.filehash) ? file : null;
+    }
+
+    private void removeMissing(Set<String> present) {
+        for (String path : entries.keySet()) {
+            if (!present.contains(path)) {
+                BlockReader.getInstance().invalidate(path);
+                names.remove(path);
+            }
+        }
+        if (entries.keySet().retainAll(present)) {
+            pathsByHash.values().retainAll(present);
+            dirty = true;
+        }
+    }
+
+    // Carrega o índice persistido quando o diretório partilhado muda (ou na primeira utilização)
+    @SuppressWarnings("unchecked")
+    private void ensureLoaded() {
+        String path = GlobalConfig.getInstance().getDefaultPath();
+        if (path.equals(indexedPath)) {
+            return;
+        }
+        save();
+        indexedPath = path;
+        entries = new HashMap<>();
+        pathsByHash.clear();
+        names.clear();
+        dirty = false;
+        File indexFile = new File(path + INDEX_FILE_NAME);
+        if (!indexFile.isFile()) {
+            return;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            entries = (Map<String, IndexEntry>) in.readObject();
+            entries.forEach((key, entry) -> {
+                entry.info.setBlockHashes(entry.blockHashes);
+                names.add(key, entry.info);
+                if (entry.info.filehash != null) {
+                    pathsByHash.put(entry.info.filehash, key);
+                }
+            });
+            System.out.println("File index loaded: " + entries.size() + " entries");
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // Índice corrompido ou de uma versão anterior: é reconstruído a partir dos ficheiros
+            System.out.println("File index ignored: " + e.getMessage());
+            entries = new HashMap<>();
+            pathsByHash.clear();
+            names.clear();
+        }
+    }
+
+    // Escreve o índice para um ficheiro temporário e substitui o anterior, para nunca deixar um índice meio escrito
+    private void save() {
+        if (!dirty || indexedPath == null) {
+            return;
+        }
+        File indexFile = new File(indexedPath + INDEX_FILE_NAME);
+        File tempFile = new File(indexedPath + INDEX_FILE_NAME + ".tmp.ser");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeObject(entries);
+        } catch (IOException e) {
+            System.out.println("Could not save file index: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            System.out.println("Could not save file index: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package Files;
+
+public interface FileIndexListener {
+    void onIndexProgress(int indexedFiles, int totalFiles);
+}
@@ -1,24 +1,34 @@
 package Files;
 
 import Communication.GlobalConfig;
-import Download.FileBlockAnswerMessage;
 
 import java.io.*;
-import java.nio.file.Files;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public class FileInfo implements Serializable, Comparable<FileInfo> {
+    private static final long serialVersionUID = 812177338591112907L;     // UID implícito da versão original
+    // Serialização Java compatível com a versão original: mantém fileSize em int (limitado a 2 GB) e acrescenta o
+    // tamanho em long com outro nome. A lista de blocos original já não é enviada (os blocos derivam do tamanho)
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("name", String.class),
+            new ObjectStreamField("filehash", String.class),
+            new ObjectStreamField("blockNumber", int.class),
+            new ObjectStreamField("fileSize", int.class),
+            new ObjectStreamField("blocksize", int.class),
+            new ObjectStreamField("largeFileSize", long.class)
+    };
+    public static final int LEGACY_BLOCK_SIZE = 10240;     // Tamanho fixo usado antes de o tamanho vir no manifesto
+    public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;    // Um bloco tem de caber numa mensagem
+    private static final int TARGET_BLOCKS = 1024;
+    private static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;    // Leituras do hash: poucas chamadas ao sistema por ficheiro
     public String name;
-    public String filehash; // Array que armazena o hash do arquivo
+    public String filehash; // Raiz da árvore de Merkle dos blocos (hexadecimal)
     public int blockNumber; // Número de blocos que o arquivo será dividido
-    public int fileSize;
-    public List<FileBlockInfo> fileBlockManagers;
-    final int blocksize = 10240;
+    public long fileSize;   // long: ficheiros com mais de 2 GB
+    public int blocksize;    // Escolhido pelo tamanho do ficheiro (ver chooseBlockSize) e enviado com o manifesto
+    private transient MerkleTree merkleTree;
 
     // Adicionar verificação no construtor:
     public FileInfo(File file) {
@@ -26,60 +36,121 @@ public class FileInfo implements Serializable, Comparable<FileInfo> {
             return;
         }
         this.name = file.getName();
-        this.fileSize = (int) file.length();
-        this.blockNumber = (int) Math.ceil((double) fileSize / blocksize);
-        this.filehash = getFileHash(file); // <--- Pode retornar null
-        this.fileBlockManagers = new ArrayList<>();
-        splitFile(file);
+        this.fileSize = file.length();
+        this.blocksize = chooseBlockSize(fileSize);
+        this.blockNumber = countBlocks(fileSize, blocksize);
+        this.filehash = getFileHash(file); // Raiz da árvore de Merkle; pode retornar null
     }
 
+    // Reconstrói o manifesto recebido pela rede: os blocos são derivados do tamanho do ficheiro
+    public FileInfo(String name, String filehash, long fileSize, int blocksize) {
+        this.name = name;
+        this.filehash = filehash;
+        this.fileSize = fileSize;
+        this.blocksize = blocksize;
+        this.blockNumber = countBlocks(fileSize, blocksize);
+    }
+
+    // Aritmética em long: com blocos de 16 KiB um int chega a 32 TB, mas fileSize / blocksize tem de ser calculado sem overflow
+    public static int countBlocks(long fileSize, int blocksize) {
+        long blocks = (fileSize + blocksize - 1) / blocksize;
+        if (blocks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many blocks: " + fileSize + " bytes with blocks of " + blocksize);
+        }
+        return (int) blocks;
+    }
+
+    // Cerca de TARGET_BLOCKS blocos por ficheiro, numa potência de 2 entre p2p.minBlockSize e p2p.maxBlockSize
+    // Ficheiros grandes ficam com menos pedidos (e menos FileBlockInfo) sem aumentar os blocos dos pequenos
+    // O tamanho muda o hash do ficheiro (raiz da árvore de Merkle): os limites têm de ser iguais em toda a rede
+    public static int chooseBlockSize(long fileSize) {
+        GlobalConfig gc = GlobalConfig.getInstance();
+        int min = Math.max(1, gc.getMinBlockSize());
+        int max = Math.max(min, Math.min(gc.getMaxBlockSize(), MAX_BLOCK_SIZE));
+        long target = Math.max(1, fileSize / TARGET_BLOCKS);
+        long size = Long.highestOneBit(target);
+        if (size < target) {
+            size <<= 1;
+        }
+        return (int) Math.min(max, Math.max(min, size));
+    }
+
+    // Lê o ficheiro uma vez, vários blocos de cada leitura: o hash de cada bloco é uma folha da árvore de Merkle
+    // e a raiz da árvore é o hash do ficheiro
     private String getFileHash(File file) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            try (InputStream inputStream = Files.newInputStream(file.toPath())) { // Cria um fluxo de entrada para ler o arquivo
-                byte[] buffer = new byte[512];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {  // Lê até o final do arquivo
-                    digest.update(buffer, 0, bytesRead);   // Atualiza o digest com os bytes lidos
+        byte[] leafHashes = new byte[blockNumber * MerkleTree.HASH_SIZE];
+        int blocksPerRead = Math.max(1, READ_BUFFER_SIZE / blocksize);
+        ByteBuffer buffer = ByteBuffer.allocate(blocksPerRead * blocksize);     // Não depende do tamanho do ficheiro
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            for (int first = 0; first < blockNumber; first += blocksPerRead) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), fileSize - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("File changed while hashing: " + file.getName());
+                    }
                 }
-            }
-            StringBuilder hexString = new StringBuilder();   // StringBuilder para a representação hexadecimal
-            for (byte b : digest.digest()) { // Itera sobre os bytes do hash
-                String hex = Integer.toHexString(0xff & b); // Converte cada byte para representação hexadecimal
-                if (hex.length() == 1) {
-                    hexString.append('0');
+                int last = Math.min(blockNumber, first + blocksPerRead);
+                for (int i = first; i < last; i++) {
+                    byte[] leaf = MerkleTree.hashBlock(buffer.array(), (i - first) * blocksize, getBlockLength(i));
+                    System.arraycopy(leaf, 0, leafHashes, i * MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
                 }
-                hexString.append(hex);
+                position += buffer.limit();
             }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException | IOException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
+        setBlockHashes(leafHashes);
+        return MerkleTree.toHex(merkleTree.root());
     }
 
-    void splitFile(File file) {
-        for (int i = 0; i < blockNumber; i++) { // Iterate over the number of blocks
-            int start = i * blocksize;  // Calculate the start byte of the block
-            int end = Math.min(blocksize * (i + 1), this.fileSize);  // Calculate the end byte of the block
-            this.fileBlockManagers.add(new FileBlockInfo(file, start, end));
-        }
+    // Hashes dos blocos (só conhecidos por quem tem o ficheiro); não seguem com o manifesto nos resultados da pesquisa
+    void setBlockHashes(byte[] leafHashes) {
+        this.merkleTree = leafHashes == null ? null : new MerkleTree(leafHashes);
     }
 
-    void writeFile(Map<Integer, FileBlockAnswerMessage> data) {
-        GlobalConfig gc = GlobalConfig.getInstance();
-        String outputPath = gc.getDefaultPath() + this.name;
-        File outputFile = new File(outputPath); // Declaração faltando
-        // Ordena os blocos pelo ID antes de escrever
-        Map<Integer, FileBlockAnswerMessage> sortedData = new TreeMap<>(data);
-        try (OutputStream outputStream = new FileOutputStream(outputFile)) {
-            for (Map.Entry<Integer, FileBlockAnswerMessage> entry : sortedData.entrySet()) {
-                outputStream.write(entry.getValue().getData());
-            }
-            System.out.println("File successfully written to: " + outputPath);
-        } catch (IOException e) {
-            e.printStackTrace();
+    byte[] getBlockHashes() {
+        return merkleTree == null ? null : merkleTree.getLeafHashes();
+    }
+
+    // Prova de Merkle do bloco, enviada com o bloco para o destinatário o verificar contra filehash
+    public byte[] getBlockProof(int blockId) {
+        return merkleTree == null ? null : merkleTree.proof(blockId);
+    }
+
+    // Os blocos são calculados a partir do tamanho, em vez de ficarem numa lista com um objeto por bloco
+    public FileBlockInfo getBlock(int blockId) {
+        if (blockId < 0 || blockId >= blockNumber) {
+            throw new IndexOutOfBoundsException("Block " + blockId + " of " + blockNumber);
         }
+        long start = (long) blockId * blocksize;
+        return new FileBlockInfo(this.name, start, start + getBlockLength(blockId));
+    }
+
+    public int getBlockLength(int blockId) {
+        return (int) Math.min(blocksize, fileSize - (long) blockId * blocksize);   // Só o último bloco é menor
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", name);
+        fields.put("filehash", filehash);
+        fields.put("blockNumber", blockNumber);
+        fields.put("fileSize", (int) Math.min(fileSize, Integer.MAX_VALUE));
+        fields.put("blocksize", blocksize);
+        fields.put("largeFileSize", fileSize);
+        out.writeFields();
+    }
+
+    // Um FileInfo de um nó anterior não tem largeFileSize: o tamanho vem do campo int
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        name = (String) fields.get("name", null);
+        filehash = (String) fields.get("filehash", null);
+        blockNumber = fields.get("blockNumber", 0);
+        blocksize = fields.get("blocksize", LEGACY_BLOCK_SIZE);
+        fileSize = fields.defaulted("largeFileSize") ? fields.get("fileSize", 0) : fields.get("largeFileSize", 0L);
     }
 
     @Override
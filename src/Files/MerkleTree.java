@@ -0,0 +1,138 @@
+package Files;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// Árvore de Merkle sobre os hashes SHA-256 dos blocos de um ficheiro
+// A raiz identifica o ficheiro (FileInfo.filehash); cada bloco recebido é verificado com a sua prova
+// (os hashes irmãos até à raiz), sem ser preciso conhecer os hashes dos outros blocos
+//
+// Folha: SHA-256(0x00 || bloco)   Nó: SHA-256(0x01 || esquerdo || direito)
+// Um nó sem irmão (nível com número ímpar de nós) sobe sem alteração para o nível seguinte
+public class MerkleTree {
+
+    public static final int HASH_SIZE = 32;
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final byte[][] levels;     // levels[0] são as folhas, cada nível com os hashes concatenados
+
+    public MerkleTree(byte[] leafHashes) {
+        int count = leafHashes.length / HASH_SIZE;
+        int height = 1;
+        for (int m = count; m > 1; m = (m + 1) / 2) {
+            height++;
+        }
+        levels = new byte[height][];
+        levels[0] = leafHashes;
+        MessageDigest digest = newDigest();
+        for (int level = 1; level < height; level++) {
+            byte[] below = levels[level - 1];
+            int belowCount = below.length / HASH_SIZE;
+            byte[] current = new byte[(belowCount + 1) / 2 * HASH_SIZE];
+            for (int i = 0; i < belowCount; i += 2) {
+                if (i + 1 < belowCount) {
+                    digest.update(NODE_PREFIX);
+                    digest.update(below, i * HASH_SIZE, 2 * HASH_SIZE);
+                    System.arraycopy(digest.digest(), 0, current, i / 2 * HASH_SIZE, HASH_SIZE);
+                } else {
+                    System.arraycopy(below, i * HASH_SIZE, current, i / 2 * HASH_SIZE, HASH_SIZE);
+                }
+            }
+            levels[level] = current;
+        }
+    }
+
+    public byte[] getLeafHashes() {
+        return levels[0];
+    }
+
+    public byte[] root() {
+        byte[] top = levels[levels.length - 1];
+        if (top.length == 0) {
+            return newDigest().digest();     // Ficheiro vazio
+        }
+        return Arrays.copyOf(top, HASH_SIZE);
+    }
+
+    // Hashes irmãos do bloco, das folhas até à raiz
+    public byte[] proof(int index) {
+        byte[] proof = new byte[(levels.length - 1) * HASH_SIZE];
+        int size = 0;
+        for (int level = 0; level < levels.length - 1; level++) {
+            int sibling = index ^ 1;
+            if (sibling < levels[level].length / HASH_SIZE) {
+                System.arraycopy(levels[level], sibling * HASH_SIZE, proof, size, HASH_SIZE);
+                size += HASH_SIZE;
+            }
+            index >>= 1;
+        }
+        return Arrays.copyOf(proof, size);
+    }
+
+    // Verifica que o hash de um bloco pertence à árvore com esta raiz e count folhas
+    public static boolean verify(byte[] leafHash, int index, int count, byte[] proof, byte[] root) {
+        if (proof == null || index < 0 || index >= count) {
+            return false;
+        }
+        MessageDigest digest = newDigest();
+        byte[] hash = leafHash;
+        int offset = 0;
+        for (int size = count; size > 1; size = (size + 1) / 2) {
+            int sibling = index ^ 1;
+            if (sibling < size) {
+                if (offset + HASH_SIZE > proof.length) {
+                    return false;
+                }
+                digest.update(NODE_PREFIX);
+                if ((index & 1) == 0) {
+                    digest.update(hash);
+                    digest.update(proof, offset, HASH_SIZE);
+                } else {
+                    digest.update(proof, offset, HASH_SIZE);
+                    digest.update(hash);
+                }
+                hash = digest.digest();
+                offset += HASH_SIZE;
+            }
+            index >>= 1;
+        }
+        return offset == proof.length && MessageDigest.isEqual(hash, root);
+    }
+
+    public static byte[] hashBlock(byte[] data, int offset, int length) {
+        MessageDigest digest = newDigest();
+        digest.update(LEAF_PREFIX);
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    public static String toHex(byte[] hash) {
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : hash) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) {
+                hexString.append('0');
+            }
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
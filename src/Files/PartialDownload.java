@@ -0,0 +1,186 @@
+package Files;
+
+import Communication.GlobalConfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Ficheiro temporário de um download em curso: os blocos são escritos na sua posição à medida que chegam
+// e o ficheiro só aparece no diretório partilhado (rename atómico) quando está completo
+// Os blocos já escritos ficam registados em <nome>.part.ser, para o download poder ser retomado
+public class PartialDownload {
+
+    public static final String STATE_SUFFIX = GlobalConfig.PART_SUFFIX + ".ser";
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+    private final File partFile;
+    private final File stateFile;
+    private final File outputFile;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileInfo fileInfo;
+    private final BitSet completedBlocks;
+    private final boolean resumed;
+    private int unsavedBlocks = 0;
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    public PartialDownload(FileInfo fileInfo) throws IOException {
+        String path = GlobalConfig.getInstance().getDefaultPath();
+        this.fileInfo = fileInfo;
+        this.outputFile = new File(path + fileInfo.name);
+        this.partFile = new File(path + fileInfo.name + GlobalConfig.PART_SUFFIX);
+        this.stateFile = new File(path + fileInfo.name + STATE_SUFFIX);
+
+        DownloadState state = readState(stateFile);
+        this.resumed = state != null && state.matches(fileInfo) && partFile.length() == fileInfo.fileSize;
+        this.completedBlocks = resumed ? state.getCompletedBlocks() : new BitSet(fileInfo.blockNumber);
+        if (!resumed && stateFile.exists() && !stateFile.delete()) {   // Estado de outro ficheiro com o mesmo nome
+            System.out.println("Could not delete " + stateFile.getPath());
+        }
+        this.file = new RandomAccessFile(partFile, "rw");
+        if (!resumed) {
+            this.file.setLength(0);
+            this.file.setLength(fileInfo.fileSize);    // Pré-alocação com o tamanho final
+        }
+        this.channel = file.getChannel();
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public synchronized BitSet getCompletedBlocks() {
+        return (BitSet) completedBlocks.clone();
+    }
+
+    // Escrita posicional: várias threads podem escrever blocos diferentes ao mesmo tempo
+    public void write(long position, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // Lê um bloco já escrito (ex.: de um download retomado, para ser verificado de novo)
+    public byte[] read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + partFile.getPath());
+            }
+        }
+        return buffer.array();
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    // Chamado depois de o bloco estar escrito no ficheiro
+    public synchronized void markCompleted(int blockId) {
+        completedBlocks.set(blockId);
+        unsavedBlocks++;
+    }
+
+    // Guarda o estado no máximo uma vez por CHECKPOINT_INTERVAL_MILLIS (ou sempre, com force)
+    // Os dados são sincronizados com o disco antes do estado, para o estado nunca indicar blocos que não estão lá
+    public synchronized void checkpoint(boolean force) {
+        long now = System.currentTimeMillis();
+        if (unsavedBlocks == 0 || (!force && now - lastCheckpoint < CHECKPOINT_INTERVAL_MILLIS)) {
+            return;
+        }
+        File tempFile = new File(stateFile.getPath() + ".tmp.ser");
+        try {
+            channel.force(false);
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeObject(new DownloadState(fileInfo.name, fileInfo.filehash, fileInfo.fileSize, fileInfo.blocksize, completedBlocks));
+            }
+            Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            unsavedBlocks = 0;
+            lastCheckpoint = now;
+        } catch (IOException e) {
+            System.out.println("Could not save download state: " + e.getMessage());
+        }
+    }
+
+    // Fecha o ficheiro temporário e move-o para o nome final
+    public void complete() throws IOException {
+        channel.force(false);
+        file.close();
+        Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (stateFile.exists() && !stateFile.delete()) {
+            System.out.println("Could not delete " + stateFile.getPath());
+        }
+        System.out.println("File successfully written to: " + outputFile.getPath());
+    }
+
+    // Interrompe o download mas mantém o ficheiro temporário e o estado, para ser retomado mais tarde
+    public void suspend() {
+        checkpoint(true);
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.out.println("Could not close " + partFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    public void abort() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.out.println("Could not close " + partFile.getPath() + ": " + e.getMessage());
+        }
+        if (!partFile.delete()) {
+            System.out.println("Could not delete " + partFile.getPath());
+        }
+        if (stateFile.exists() && !stateFile.delete()) {
+            System.out.println("Could not delete " + stateFile.getPath());
+        }
+    }
+
+    // Downloads interrompidos que estão no diretório partilhado (para mostrar no arranque)
+    public static List<DownloadState> findSuspended() {
+        List<DownloadState> states = new ArrayList<>();
+        File[] files = new File(GlobalConfig.getInstance().getDefaultPath()).listFiles((dir, name) -> name.endsWith(STATE_SUFFIX));
+        if (files == null) {
+            return states;
+        }
+        for (File stateFile : files) {
+            DownloadState state = readState(stateFile);
+            if (state != null) {
+                states.add(state);
+            }
+        }
+        return states;
+    }
+
+    private static DownloadState readState(File stateFile) {
+        if (!stateFile.exists()) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            return (DownloadState) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.out.println("Download state ignored: " + stateFile.getName() + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+}
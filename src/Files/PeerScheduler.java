@@ -0,0 +1,86 @@
+package Files;
+
+import Search.FileSearchResult;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Escolhe o nó a que se pede cada bloco e guarda as estatísticas de cada nó (ver PeerStats)
+// A política é escolhida com p2p.peerScheduler: random, round-robin ou adaptive
+public abstract class PeerScheduler {
+
+    private final Map<String, PeerStats> stats = new ConcurrentHashMap<>();
+
+    public static PeerScheduler create(String policy) {
+        switch (policy) {
+            case "random":
+                return new RandomPeerScheduler();
+            case "round-robin":
+                return new RoundRobinPeerScheduler();
+            case "adaptive":
+                return new AdaptivePeerScheduler();
+            default:
+                System.out.println("Unknown peer scheduler " + policy + ", using adaptive");
+                return new AdaptivePeerScheduler();
+        }
+    }
+
+    public static String nodeKey(FileSearchResult node) {
+        return node.getIp() + ":" + node.getPort();
+    }
+
+    public abstract String getName();
+
+    protected abstract FileSearchResult select(List<FileSearchResult> nodes, int blockSize);
+
+    // Escolhe o nó e conta já o pedido, para escolhas simultâneas verem os pedidos umas das outras
+    // Nós em backoff só são escolhidos se todos estiverem em backoff
+    public synchronized FileSearchResult choose(List<FileSearchResult> nodes, int blockSize) {
+        List<FileSearchResult> candidates = new ArrayList<>();
+        for (FileSearchResult node : nodes) {
+            if (!statsOf(node).isBackingOff()) {
+                candidates.add(node);
+            }
+        }
+        FileSearchResult node = select(candidates.isEmpty() ? nodes : candidates, blockSize);
+        statsOf(node).requestSent();
+        return node;
+    }
+
+    // Pedido a um nó já escolhido (blocos seguintes de um lote)
+    public void onRequestSent(String nodeKey) {
+        statsOf(nodeKey).requestSent();
+    }
+
+    public PeerStats statsOf(FileSearchResult node) {
+        return statsOf(nodeKey(node));
+    }
+
+    public PeerStats statsOf(String nodeKey) {
+        return stats.computeIfAbsent(nodeKey, PeerStats::new);
+    }
+
+    public void onBlockReceived(String nodeKey, int bytes, long latencyNanos) {
+        statsOf(nodeKey).blockReceived(bytes, latencyNanos);
+    }
+
+    public void onRequestFailed(String nodeKey) {
+        statsOf(nodeKey).requestFailed();
+    }
+
+    // Devolve o número de blocos inválidos recebidos do nó
+    public int onBadBlock(String nodeKey) {
+        return statsOf(nodeKey).badBlockReceived();
+    }
+
+    public void onRequestCancelled(String nodeKey) {
+        statsOf(nodeKey).requestCancelled();
+    }
+
+    public Map<String, PeerStats> getStats() {
+        return new HashMap<>(stats);
+    }
+}
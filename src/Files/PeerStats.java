@@ -0,0 +1,97 @@
+package Files;
+
+// Estimativas de um nó durante um download: latência e débito com média móvel exponencial (EWMA)
+public class PeerStats {
+
+    private static final double ALPHA = 0.2;    // Peso de cada nova amostra
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final String nodeKey;
+    private double latencyMillis = -1;      // -1 enquanto não houver amostras
+    private double bytesPerSecond = -1;
+    private int inFlight;
+    private int blocks;
+    private int failures;                   // Falhas seguidas
+    private int badBlocks;                  // Blocos que falharam a verificação de Merkle
+    private long backoffUntil;
+
+    public PeerStats(String nodeKey) {
+        this.nodeKey = nodeKey;
+    }
+
+    public synchronized void requestSent() {
+        inFlight++;
+    }
+
+    public synchronized void blockReceived(int bytes, long latencyNanos) {
+        inFlight = Math.max(0, inFlight - 1);
+        blocks++;
+        failures = 0;
+        double latency = Math.max(latencyNanos, 1) / 1e6;
+        double throughput = bytes / (latency / 1000);
+        latencyMillis = latencyMillis < 0 ? latency : ALPHA * latency + (1 - ALPHA) * latencyMillis;
+        bytesPerSecond = bytesPerSecond < 0 ? throughput : ALPHA * throughput + (1 - ALPHA) * bytesPerSecond;
+    }
+
+    // Cada falha seguida duplica o tempo em que o nó deixa de receber pedidos
+    public synchronized void requestFailed() {
+        inFlight = Math.max(0, inFlight - 1);
+        failures++;
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, 500L << Math.min(failures - 1, 10));
+        backoffUntil = System.currentTimeMillis() + backoff;
+    }
+
+    // Bloco com conteúdo errado: conta como falha e fica registado
+    public synchronized int badBlockReceived() {
+        return ++badBlocks;
+    }
+
+    // Pedido cancelado (o bloco chegou de outro nó): não conta contra o nó
+    public synchronized void requestCancelled() {
+        inFlight = Math.max(0, inFlight - 1);
+    }
+
+    public synchronized boolean isBackingOff() {
+        return System.currentTimeMillis() < backoffUntil;
+    }
+
+    public synchronized boolean hasSamples() {
+        return blocks > 0;
+    }
+
+    // Tempo estimado até o nó entregar mais um bloco, contando com os pedidos que já tem em espera
+    public synchronized double expectedMillis(int blockSize) {
+        double perBlock = bytesPerSecond > 0 ? blockSize * 1000.0 / bytesPerSecond : latencyMillis;
+        return latencyMillis + inFlight * perBlock;
+    }
+
+    public String getNodeKey() {
+        return nodeKey;
+    }
+
+    public synchronized double getLatencyMillis() {
+        return Math.max(latencyMillis, 0);
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return Math.max(bytesPerSecond, 0);
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    public synchronized int getBadBlocks() {
+        return badBlocks;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s latency=%.1fms throughput=%.1fKB/s inFlight=%d failures=%d badBlocks=%d",
+                nodeKey, getLatencyMillis(), getBytesPerSecond() / 1024, inFlight, failures, badBlocks);
+    }
+}
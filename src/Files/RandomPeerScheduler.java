@@ -0,0 +1,20 @@
+package Files;
+
+import Search.FileSearchResult;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Cada bloco vai para um nó escolhido ao acaso
+public class RandomPeerScheduler extends PeerScheduler {
+
+    @Override
+    public String getName() {
+        return "random";
+    }
+
+    @Override
+    protected FileSearchResult select(List<FileSearchResult> nodes, int blockSize) {
+        return nodes.get(ThreadLocalRandom.current().nextInt(nodes.size()));
+    }
+}
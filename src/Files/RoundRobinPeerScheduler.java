@@ -0,0 +1,22 @@
+package Files;
+
+import Search.FileSearchResult;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Os blocos são distribuídos pelos nós à vez
+public class RoundRobinPeerScheduler extends PeerScheduler {
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public String getName() {
+        return "round-robin";
+    }
+
+    @Override
+    protected FileSearchResult select(List<FileSearchResult> nodes, int blockSize) {
+        return nodes.get(Math.floorMod(next.getAndIncrement(), nodes.size()));
+    }
+}
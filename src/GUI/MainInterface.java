@@ -1,10 +1,15 @@
 package GUI;
 
-import Communication.Command;
+import Download.BlockCodecs;
+import Download.CompressionStats;
+import Files.DownloadState;
 import Files.DownloadTaskManager;
+import Files.FileIndex;
+import Files.PartialDownload;
+import Files.PeerStats;
 import Search.FileSearchResult;
-import Search.WordSearchMessage;
 import Client.ClientManager;
+import Client.SearchQuery;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -13,7 +18,6 @@ import java.awt.event.MouseEvent;
 import java.util.*;
 import java.util.List;
 import javax.swing.*;
-import javax.swing.Timer;
 
 
 public class MainInterface {
@@ -24,12 +28,16 @@ public class MainInterface {
     private final Map<String,Integer> donwloadResults = new TreeMap<>();
     private final Map<String, DownloadTaskManager> dtmmap = new TreeMap<>();
     ClientManager clientManager;
+    private SearchQuery currentSearch;    // Pesquisa mostrada na lista de resultados (só usada na thread da interface)
 
     public MainInterface(ClientManager clientManage, String ip, int port) {
         this.clientManager = clientManage;
 
         frame = new JFrame();
         frame.setTitle(ip + "/" + port) ;
+        // Progresso da indexação dos ficheiros partilhados no título da janela
+        FileIndex.getInstance().addListener((indexed, total) -> SwingUtilities.invokeLater(() ->
+                frame.setTitle(indexed == total ? ip + "/" + port : ip + "/" + port + " (a indexar " + indexed + "/" + total + ")")));
         frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE); // para que o botao de fechar a janela termine a aplicacao
         addFrameContent();
         frame.pack(); // para que a janela se redimensione de forma a ter tod o seu conteudo visivel
@@ -70,6 +78,11 @@ public class MainInterface {
         frame.add(scrollPane, BorderLayout.CENTER);
         downloadResultsModel = new DefaultListModel<>();
         JList<String> downloadResultsList = new JList<>(downloadResultsModel);
+        // Downloads interrompidos: são retomados quando o mesmo ficheiro voltar a ser descarregado
+        for (DownloadState state : PartialDownload.findSuspended()) {
+            donwloadResults.put(state.getName(), state.getProgress());
+            downloadResultsModel.addElement(state.getName() + " " + state.getProgress() + "%");
+        }
         bottomPanel.add(downloadResultsList, BorderLayout.SOUTH);
 
         //leftPanel.add(leftPanel, BorderLayout.SOUTH);
@@ -89,28 +102,15 @@ public class MainInterface {
                 return;
             }
             searchResultsModel.clear();
-            clientManager.resetFileSearchDB();
-            clientManager.sendAll(Command.WordSearchMessage, new WordSearchMessage(searchTerm));
-            buttonSearch.setEnabled(false);
-
-            Timer timeoutTimer = new Timer(3000, event -> {
-                searchResultsModel.addElement("Ficheiro não encontrado");
-                    buttonSearch.setEnabled(true);
-            });
-            timeoutTimer.setRepeats(false);
-            timeoutTimer.start();
-
-            clientManager.addListener(() -> {
-                timeoutTimer.stop();
-                SwingUtilities.invokeLater(() -> {
-                    searchResultsModel.clear();
-                    HashMap<String, List<FileSearchResult>> data = clientManager.getData();
-                    for (List<FileSearchResult> file : data.values()) {
-                        searchResultsModel.addElement(file.getFirst().toString() + "<" + file.size() + ">");
-                    }
-                    buttonSearch.setEnabled(true);
-                });
-            });
+            // Os resultados aparecem à medida que cada nó responde; uma nova pesquisa substitui a que está na lista
+            SearchQuery search = clientManager.search(searchTerm, ClientManager.DEFAULT_SEARCH_TIMEOUT_MILLIS,
+                    result -> SwingUtilities.invokeLater(this::showSearchResults));
+            currentSearch = search;
+            search.getCompletion().thenAccept(results -> SwingUtilities.invokeLater(() -> {
+                if (search == currentSearch && results.isEmpty()) {
+                    searchResultsModel.addElement("Ficheiro não encontrado");
+                }
+            }));
         });
 
 
@@ -122,7 +122,7 @@ public class MainInterface {
                 if (!selectedFiles.isEmpty()) {     // Troca de verificação de null para uma verificação de lista vazia
                     for (String selectedFile : selectedFiles) {      // Adicionado loop para descarregar simlultaneamente múltiplos ficheiros
                         String modifiedString = selectedFile.substring(0, selectedFile.length() - 3);
-                        DownloadTaskManager dtm = clientManager.startDownloadThreads(modifiedString);
+                        DownloadTaskManager dtm = clientManager.startDownloadThreads(currentSearch, modifiedString);
                         dtmmap.remove(modifiedString);
                         dtmmap.put(modifiedString, dtm);
 
@@ -162,6 +162,7 @@ public class MainInterface {
 
                         // Blocos por nó
                         Map<String, Integer> blocksPerNode = dtm.getBlocksPerNodeStats();
+                        Map<String, PeerStats> peerStats = dtm.getPeerStats();
                         message.append("=== Download concluído com sucesso! ===");
                         blocksPerNode.forEach((node, count) -> {
                             String[] parts = node.split(":");
@@ -169,7 +170,22 @@ public class MainInterface {
                             String port = parts[1];
                             message.append(String.format("\n- %s [%s]: %d blocos (%.1f%%)",
                                     ip, port, count, (count * 100.0) / dtm.getTotalBlocks()));
+                            PeerStats stats = peerStats.get(node);
+                            if (stats != null) {
+                                message.append(String.format(" | latência %.1f ms, %.1f KB/s",
+                                        stats.getLatencyMillis(), stats.getBytesPerSecond() / 1024));
+                                if (stats.getBadBlocks() > 0) {
+                                    message.append(String.format(", %d blocos inválidos", stats.getBadBlocks()));
+                                }
+                            }
+                            CompressionStats compression = BlockCodecs.getStats().get(node);
+                            if (compression != null && compression.getBlocksDecompressed() > 0) {
+                                message.append(String.format(" | comprimido a %.0f%%, %d KB poupados, %.1f ms a descomprimir",
+                                        compression.getReceivedRatio() * 100, compression.getBytesSaved() / 1024,
+                                        compression.getDecompressMillis()));
+                            }
                         });
+                        message.append("\nEscolha dos nós: ").append(dtm.getSchedulerName());
 
                         // Tempo total
                         message.append(String.format("\nTempo decorrido: %.3f segundos", dtm.getTotalTime()));
@@ -195,4 +211,11 @@ public class MainInterface {
         });
     }
 
+    private void showSearchResults() {
+        searchResultsModel.clear();
+        for (List<FileSearchResult> file : currentSearch.getResults().values()) {
+            searchResultsModel.addElement(file.getFirst().toString() + "<" + file.size() + ">");
+        }
+    }
+
 }
@@ -1,6 +1,8 @@
 import Client.ClientManager;
 import Communication.GlobalConfig;
+import Files.FileIndex;
 import GUI.MainInterface;
+import Server.NioSocketServer;
 import Server.RunnableSocketServer;
 import Server.SocketServer;
 
@@ -16,16 +18,18 @@ public class Node {
         System.out.println("Port: " + port);
 
         // Create a node
+        GlobalConfig gc = GlobalConfig.getInstance();
         ClientManager clientManager = new ClientManager();
-        SocketServer server = new SocketServer(port);
+        SocketServer server = gc.isNioServer() ? new NioSocketServer(port) : new SocketServer(port);
+        server.setClientManager(clientManager);     // Pesquisas de outros nós são reencaminhadas pelas ligações deste nó
         Thread thread_server = new Thread(new RunnableSocketServer(server));
         thread_server.start();
 
 
-        GlobalConfig gc = GlobalConfig.getInstance();
         gc.setDefaultPath("documents/dl" + port % 10+ "/");
 
         MainInterface gui = new MainInterface(clientManager,host, port);
+        FileIndex.getInstance().indexInBackground();     // As pesquisas são respondidas com o que já está indexado
         gui.open();
     }
 }
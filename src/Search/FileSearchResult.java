@@ -5,6 +5,8 @@ import Files.FileInfo;
 import java.io.Serializable;
 
 public class FileSearchResult implements Serializable {
+    private static final long serialVersionUID = 7494412458936334697L;
+
     private final WordSearchMessage wordSearchMessage;
     private final FileInfo searchTaskManager;
     private final String ip;
@@ -23,6 +25,10 @@ public class FileSearchResult implements Serializable {
         return (searchTaskManager.name);
     }
 
+    public WordSearchMessage getWordSearchMessage() {
+        return wordSearchMessage;
+    }
+
     public FileInfo getFileInfo() {
         return searchTaskManager;
     }
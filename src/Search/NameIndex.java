@@ -0,0 +1,188 @@
+package Search;
+
+import Files.FileInfo;
+
+import java.util.*;
+
+// Índice invertido de trigramas dos nomes dos ficheiros partilhados, em minúsculas (mantido pelo FileIndex)
+// Uma pesquisa só compara os nomes que contêm todos os trigramas dos termos, em vez de percorrer todos os nomes
+// Termos com menos de 3 caracteres não têm trigramas e são comparados com todos os nomes
+public class NameIndex {
+
+    private static final int GRAM_SIZE = 3;
+
+    private static class Entry {
+        private final FileInfo info;
+        private final String foldedName;
+
+        Entry(FileInfo info) {
+            this.info = info;
+            this.foldedName = fold(info.name);
+        }
+    }
+
+    private final Map<String, Integer> idsByKey = new HashMap<>();     // Chave (caminho do ficheiro) -> id
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final Map<String, Postings> postings = new HashMap<>();    // Trigrama -> ids dos nomes que o contêm
+    private int nextId = 0;    // Ids crescentes: as listas de ids ficam ordenadas sem reordenar
+
+    // Acrescenta ou substitui o ficheiro com esta chave
+    public synchronized void add(String key, FileInfo info) {
+        remove(key);
+        if (info.name == null) {
+            return;
+        }
+        int id = nextId++;
+        Entry entry = new Entry(info);
+        idsByKey.put(key, id);
+        entries.put(id, entry);
+        for (String gram : grams(entry.foldedName)) {
+            postings.computeIfAbsent(gram, g -> new Postings()).add(id);
+        }
+    }
+
+    public synchronized void remove(String key) {
+        Integer id = idsByKey.remove(key);
+        if (id == null) {
+            return;
+        }
+        Entry entry = entries.remove(id);
+        for (String gram : grams(entry.foldedName)) {
+            Postings list = postings.get(gram);
+            if (list != null && list.remove(id) && list.size == 0) {
+                postings.remove(gram);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        idsByKey.clear();
+        entries.clear();
+        postings.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Ficheiros cujo nome contém todos os termos da pesquisa (separados por espaços), com o total de ocorrências
+    // dos termos no nome, ordenados pelo nome
+    public synchronized Map<FileInfo, Integer> search(String query) {
+        Map<FileInfo, Integer> result = new TreeMap<>();
+        String[] terms = fold(query).trim().split("\\s+");
+        if (terms[0].isEmpty()) {
+            return result;
+        }
+        Postings candidates = findCandidates(terms);
+        if (candidates == null) {
+            for (Entry entry : entries.values()) {
+                addIfMatches(entry, terms, result);
+            }
+        } else {
+            for (int i = 0; i < candidates.size; i++) {
+                addIfMatches(entries.get(candidates.ids[i]), terms, result);
+            }
+        }
+        return result;
+    }
+
+    // Interseção das listas de todos os trigramas dos termos, da mais pequena para a maior
+    // Devolve null se nenhum termo tiver trigramas (todos os nomes são candidatos)
+    private Postings findCandidates(String[] terms) {
+        List<Postings> lists = new ArrayList<>();
+        for (String term : terms) {
+            for (String gram : grams(term)) {
+                Postings list = postings.get(gram);
+                if (list == null) {
+                    return new Postings();     // Trigrama que não aparece em nenhum nome
+                }
+                lists.add(list);
+            }
+        }
+        if (lists.isEmpty()) {
+            return null;
+        }
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        Postings candidates = lists.get(0);
+        for (int i = 1; i < lists.size() && candidates.size > 0; i++) {
+            candidates = candidates.intersect(lists.get(i));
+        }
+        return candidates;
+    }
+
+    // Os trigramas só indicam candidatos: a confirmação (e a contagem) é feita no nome, sem criar substrings
+    private static void addIfMatches(Entry entry, String[] terms, Map<FileInfo, Integer> result) {
+        int total = 0;
+        for (String term : terms) {
+            int occurrences = countOccurrences(entry.foldedName, term);
+            if (occurrences == 0) {
+                return;
+            }
+            total += occurrences;
+        }
+        result.put(entry.info, total);
+    }
+
+    // Ocorrências (incluindo sobrepostas) de term em text
+    static int countOccurrences(String text, String term) {
+        int count = 0;
+        for (int i = text.indexOf(term); i >= 0; i = text.indexOf(term, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static Set<String> grams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_SIZE <= text.length(); i++) {
+            grams.add(text.substring(i, i + GRAM_SIZE));
+        }
+        return grams;
+    }
+
+    private static String fold(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    // Lista ordenada de ids num int[] (sem Integer por elemento)
+    private static class Postings {
+        private int[] ids = new int[4];
+        private int size = 0;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;      // Os ids são crescentes
+        }
+
+        boolean remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        Postings intersect(Postings other) {
+            Postings result = new Postings();
+            result.ids = new int[Math.min(size, other.size)];
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                if (ids[i] < other.ids[j]) {
+                    i++;
+                } else if (ids[i] > other.ids[j]) {
+                    j++;
+                } else {
+                    result.ids[result.size++] = ids[i];
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package Search;
+
+import java.io.Serializable;
+
+// Resposta de um nó a uma pesquisa: leva o id da pesquisa, mesmo quando não há resultados,
+// para o cliente a entregar à pesquisa certa quando tem várias em curso
+// Um nó que reencaminha a pesquisa envia várias respostas parciais (complete = false) e só a última completa
+public class SearchReply implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String queryId;
+    private final FileSearchResult[] results;
+    private final boolean complete;
+
+    public SearchReply(String queryId, FileSearchResult[] results) {
+        this(queryId, results, true);
+    }
+
+    public SearchReply(String queryId, FileSearchResult[] results, boolean complete) {
+        this.queryId = queryId;
+        this.results = results;
+        this.complete = complete;
+    }
+
+    public String getQueryId() {
+        return queryId;     // null nas respostas de nós com o protocolo anterior
+    }
+
+    public FileSearchResult[] getResults() {
+        return results;
+    }
+
+    // false: o nó ainda vai enviar mais resultados para esta pesquisa
+    public boolean isComplete() {
+        return complete;
+    }
+}
@@ -0,0 +1,47 @@
+package Search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Ids das pesquisas vistas recentemente por este nó (iniciadas aqui ou recebidas de outros nós)
+// Numa rede com ciclos a mesma pesquisa chega por vários caminhos: só a primeira cópia é tratada
+// Cada id é esquecido ao fim de retentionMillis, e os mais antigos saem quando passam de capacity
+public class SeenQueries {
+
+    private final Map<String, Long> seenAt = new LinkedHashMap<>();     // Id -> instante em que foi visto (ordem de chegada)
+    private final int capacity;
+    private final long retentionMillis;
+
+    public SeenQueries(int capacity, long retentionMillis) {
+        this.capacity = capacity;
+        this.retentionMillis = retentionMillis;
+    }
+
+    // Regista o id; devolve false se já tinha sido visto (pesquisa duplicada)
+    public synchronized boolean markSeen(String queryId) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (seenAt.containsKey(queryId)) {
+            return false;
+        }
+        seenAt.put(queryId, now);
+        return true;
+    }
+
+    public synchronized int size() {
+        return seenAt.size();
+    }
+
+    // As entradas estão por ordem de chegada: basta percorrer do início até à primeira que ainda vale
+    private void expire(long now) {
+        Iterator<Long> eldest = seenAt.values().iterator();
+        while (eldest.hasNext()) {
+            long time = eldest.next();
+            if (now - time < retentionMillis && seenAt.size() < capacity) {
+                break;
+            }
+            eldest.remove();
+        }
+    }
+}
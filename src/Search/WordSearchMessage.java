@@ -1,52 +1,53 @@
 package Search;
 
 import Communication.GlobalConfig;
+import Files.FileIndex;
 import Files.FileInfo;
 
 import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.UUID;
 
 public class WordSearchMessage implements Serializable {
+    private static final long serialVersionUID = -4959866858991576393L;    // Original; queryId e ttl são campos acrescentados
+
     private final String message;
+    private final String queryId;   // Identifica a pesquisa nas respostas (várias pesquisas em simultâneo)
+    private final int ttl;          // Nós que a pesquisa ainda pode percorrer, contando com o que a recebe
 
     public WordSearchMessage(String text) {
-        this.message = text;
+        this(text, UUID.randomUUID().toString(), GlobalConfig.getInstance().getSearchTtl());
     }
 
-    public List<FileInfo> search() {
-        GlobalConfig gc = GlobalConfig.getInstance();
-        Map<FileInfo, Integer> occurrenceMap = new TreeMap<>();
-        File[] files = gc.getFilesInDirectory();
-
-        for (File file : files) {
-            FileInfo info = new FileInfo(file);
-            int occurrences = countOccurrences(file.getName());
+    public WordSearchMessage(String text, String queryId) {
+        this(text, queryId, 1);
+    }
 
-            // Verificação de completude via sistema de arquivos
-            boolean isComplete = isFileComplete(info, gc.getDefaultPath());
+    public WordSearchMessage(String text, String queryId, int ttl) {
+        this.message = text;
+        this.queryId = queryId;
+        this.ttl = ttl;
+    }
 
-            if (isComplete && occurrences != 0) {
-                occurrenceMap.put(info, occurrences);
-            }
-        }
-        return new ArrayList<>(occurrenceMap.keySet());
+    // A mesma pesquisa (mesmo id) com menos um salto, para ser reencaminhada aos vizinhos
+    public WordSearchMessage forward() {
+        return new WordSearchMessage(message, queryId, ttl - 1);
     }
 
-    private int countOccurrences(String text) {
-        int n = text.length();
-        int m = this.message.length();
-        int count = 0;
+    // Resolvida pelo índice de trigramas dos nomes (NameIndex): vários termos separados por espaços têm de aparecer todos
+    public List<FileInfo> search() {
+        GlobalConfig gc = GlobalConfig.getInstance();
+        FileIndex index = FileIndex.getInstance();
 
-        for (int s = 0; s <= n - m; s++) {
-            if (text.substring(s, s + m).equalsIgnoreCase(this.message)) {
-                count++;
+        List<FileInfo> result = new ArrayList<>();
+        for (FileInfo info : index.searchNames(this.message).keySet()) {     // Ordenados pelo nome
+            if (isFileComplete(info, gc.getDefaultPath())) {     // Verificação de completude via sistema de arquivos
+                result.add(info);
             }
         }
-        return count;
+        return result;
     }
 
     private boolean isFileComplete(FileInfo info, String basePath) {
@@ -57,4 +58,12 @@ public class WordSearchMessage implements Serializable {
     public String getSearchTerm() {
         return message;
     }
+
+    public String getQueryId() {
+        return queryId;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
 }
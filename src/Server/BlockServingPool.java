@@ -0,0 +1,92 @@
+package Server;
+
+import Communication.NodeThreads;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Conjunto de workers que servem blocos, dividido em shards com uma fila e uma thread cada
+// Todos os pedidos de uma ligação vão para o mesmo shard, por isso as respostas a um nó saem pela ordem dos pedidos
+public class BlockServingPool {
+
+    private final Shard[] shards;
+    private volatile boolean running = true;
+
+    public BlockServingPool(int workers) {
+        shards = new Shard[Math.max(1, workers)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+            NodeThreads.start("block-worker-" + i, shards[i]::run);
+        }
+    }
+
+    // O shard é escolhido pela chave (a ligação), sempre o mesmo para a mesma chave
+    public void submit(Object key, Runnable task) {
+        shards[shardOf(key)].queue.add(task);
+    }
+
+    public int shardOf(Object key) {
+        return Math.floorMod(System.identityHashCode(key), shards.length);
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Shard shard : shards) {
+            shard.queue.add(() -> { });    // Acorda o worker para terminar
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int getQueueDepth(int shard) {
+        return shards[shard].queue.size();
+    }
+
+    public long getServedCount(int shard) {
+        return shards[shard].served.get();
+    }
+
+    // Tempo médio de serviço de um bloco no shard, em milissegundos
+    public double getAverageServiceTime(int shard) {
+        long served = shards[shard].served.get();
+        return served == 0 ? 0 : shards[shard].serviceNanos.get() / 1e6 / served;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("BlockServingPool{");
+        for (int i = 0; i < shards.length; i++) {
+            builder.append(String.format("%s[%d] depth=%d served=%d avg=%.3fms", i == 0 ? "" : ", ",
+                    i, getQueueDepth(i), getServedCount(i), getAverageServiceTime(i)));
+        }
+        return builder.append('}').toString();
+    }
+
+    private class Shard {
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong served = new AtomicLong();
+        private final AtomicLong serviceNanos = new AtomicLong();
+
+        void run() {
+            while (running) {
+                try {
+                    Runnable task = queue.take();
+                    long start = System.nanoTime();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.out.println("Block worker error: " + e.getMessage());
+                    }
+                    serviceNanos.addAndGet(System.nanoTime() - start);
+                    served.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+}
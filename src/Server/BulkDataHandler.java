@@ -0,0 +1,73 @@
+package Server;
+
+import Communication.BulkProtocol;
+import Communication.GlobalConfig;
+import Files.BlockReader;
+import Files.FileBlockInfo;
+import Files.FileIndex;
+import Files.FileInfo;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+// Atende uma ligação de dados (bulk): cada pedido é respondido com um cabeçalho e o bloco enviado com transferTo
+public class BulkDataHandler {
+
+    private final SocketChannel channel;
+    private int transferUnit;     // Negociada no início da ligação
+
+    public BulkDataHandler(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public void serve() {
+        ByteBuffer header = ByteBuffer.allocate(6);
+        try {
+            channel.socket().setTcpNoDelay(true);   // O cabeçalho e o bloco seguem sem esperar pelo ACK do anterior
+            ByteBuffer proposed = ByteBuffer.allocate(4);
+            BulkProtocol.readFully(channel, proposed);
+            transferUnit = BulkProtocol.negotiateTransferUnit(proposed.getInt(), GlobalConfig.getInstance().getBulkTransferUnit());
+            channel.socket().setSendBufferSize(transferUnit);
+            ByteBuffer accepted = ByteBuffer.allocate(4);
+            accepted.putInt(transferUnit).flip();
+            BulkProtocol.writeFully(channel, accepted);
+            while (true) {
+                header.clear();
+                BulkProtocol.readFully(channel, header);
+                int blockId = header.getInt();
+                ByteBuffer hash = ByteBuffer.allocate(BulkProtocol.readHashLength(header));
+                BulkProtocol.readFully(channel, hash);
+                sendBlock(StandardCharsets.US_ASCII.decode(hash).toString(), blockId);
+            }
+        } catch (EOFException e) {
+            System.out.println("Bulk connection closed by " + channel.socket().getRemoteSocketAddress());
+        } catch (IOException e) {
+            System.out.println("Bulk connection error: " + e.getMessage());
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Could not close bulk connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void sendBlock(String fileHash, int blockId) throws IOException {
+        FileIndex index = FileIndex.getInstance();
+        File file = index.getFileByHash(fileHash);
+        FileInfo info = file == null ? null : index.getFileInfo(file);
+        if (info == null || blockId < 0 || blockId >= info.blockNumber) {
+            BulkProtocol.writeFully(channel, BulkProtocol.encodeResponseHeader(blockId, BulkProtocol.NOT_AVAILABLE, null));
+            return;
+        }
+        FileBlockInfo block = info.getBlock(blockId);
+        int length = block.getLength();
+        BulkProtocol.writeFully(channel, BulkProtocol.encodeResponseHeader(blockId, length, info.getBlockProof(blockId)));
+        BlockReader.getInstance().transferTo(file, block.startByte, length, channel, transferUnit);
+        System.out.println("Server sending bulk block " + blockId);
+    }
+}
@@ -0,0 +1,433 @@
+package Server;
+
+import Communication.BulkProtocol;
+import Communication.Command;
+import Communication.GlobalConfig;
+import Communication.MessageSender;
+import Communication.MessageWrapper;
+import Communication.NodeThreads;
+import Communication.WireProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+// Servidor não bloqueante: um número fixo de threads de I/O, cada uma com o seu Selector,
+// atende todas as ligações do protocolo binário (leituras e escritas de frames sem bloquear)
+// As ligações de dados (bulk) e de serialização Java continuam a ser atendidas por uma thread bloqueante
+// As pesquisas (índice e reencaminhamento) são tratadas por workers, para não atrasarem as outras ligações do Selector
+public class NioSocketServer extends SocketServer {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_QUEUED_SEARCHES = 1024;     // Pesquisas à espera dos workers, de todas as ligações
+
+    private IoLoop[] loops;
+    private final BlockingQueue<Runnable> messageQueue = new ArrayBlockingQueue<>(MAX_QUEUED_SEARCHES);
+    private final AtomicLong peakPendingWriteBytes = new AtomicLong();     // Maior fila de escrita de uma ligação
+
+    public NioSocketServer(int port) {
+        super(port);
+    }
+
+    public NioSocketServer(int port, BlockServingPool servingPool) {
+        super(port, servingPool);
+    }
+
+    @Override
+    public synchronized void startServer() {
+        try {
+            bind();
+            ServerSocketChannel serverChannel = getServerSocket().getChannel();
+            int ioThreads = Math.max(1, GlobalConfig.getInstance().getIoThreads());
+            loops = new IoLoop[ioThreads];
+            for (int i = 0; i < ioThreads; i++) {
+                loops[i] = new IoLoop();
+                new Thread(loops[i], "nio-io-" + i).start();
+            }
+            for (int i = 0; i < ioThreads; i++) {
+                NodeThreads.start("nio-worker-" + i, this::runMessageWorker);
+            }
+            System.out.println("NIO server using " + ioThreads + " I/O threads");
+            int next = 0;
+            while (isRunning()) {
+                SocketChannel channel = serverChannel.accept();   // Aceita uma nova conexão de cliente
+                System.out.println("Server accepted connection from " + channel.getRemoteAddress());
+                loops[next++ % loops.length].register(channel);  // Distribui as ligações pelas threads de I/O
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // As respostas das ligações NIO entram na fila de escrita da ligação sem esperar por espaço (ver NioConnection)
+    @Override
+    protected void sendReply(MessageSender transport, MessageWrapper reply, Runnable onSent) {
+        if (transport instanceof NioConnection) {
+            ((NioConnection) transport).sendReply(reply, onSent);
+        } else {
+            super.sendReply(transport, reply, onSent);     // Ligação entregue a uma thread bloqueante
+        }
+    }
+
+    public long getPeakPendingWriteBytes() {
+        return peakPendingWriteBytes.get();
+    }
+
+    private void runMessageWorker() {
+        while (isRunning()) {
+            try {
+                messageQueue.take().run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Thread de I/O: espera por eventos de várias ligações num único Selector
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final List<NioConnection> handOffs = new ArrayList<>();
+        private volatile Thread thread;
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (isRunning()) {
+                try {
+                    selector.select();
+                    registerNewChannels();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            System.out.println("Connection error: " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                    completeHandOffs();
+                } catch (IOException e) {
+                    System.out.println("I/O loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerNewChannels() throws IOException {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioConnection connection = new NioConnection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+        }
+
+        // Ligações que não são do protocolo binário passam para uma thread bloqueante
+        // O canal só pode voltar a ser bloqueante depois de o Selector processar o cancelamento da chave
+        private void completeHandOffs() throws IOException {
+            if (handOffs.isEmpty()) {
+                return;
+            }
+            selector.selectNow();
+            for (NioConnection connection : handOffs) {
+                SocketChannel channel = connection.channel;
+                byte[] preface = connection.readBuffer.array();
+                try {
+                    channel.configureBlocking(true);
+                } catch (IOException e) {
+                    connection.close();
+                    continue;
+                }
+                NodeThreads.start("connection-" + connection.remoteHost, () -> {
+                    try {
+                        handleConnection(channel.socket(), preface);
+                    } catch (IOException e) {
+                        System.out.println("Connection closed: " + e);
+                    }
+                });
+            }
+            handOffs.clear();
+        }
+    }
+
+    // Frame por escrever; onWritten (pode ser null) corre quando foi todo escrito ou descartado
+    private static class OutgoingFrame {
+        private final ByteBuffer frame;
+        private final Runnable onWritten;
+
+        OutgoingFrame(ByteBuffer frame, Runnable onWritten) {
+            this.frame = frame;
+            this.onWritten = onWritten;
+        }
+    }
+
+    // Estado de uma ligação: frames lidos em buffer até estarem completos e fila de frames por escrever
+    // A fila de escrita tem no máximo p2p.maxPendingWriteBytes: cheia, os frames seguintes ficam estacionados na
+    // ligação (nenhuma thread espera) e a thread de I/O deixa de ler a ligação até o cliente ler as respostas
+    // As respostas dos blocos estacionadas são limitadas pelos créditos, que só são libertados depois da escrita
+    private class NioConnection implements MessageSender {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final String remoteHost;
+        private final Queue<OutgoingFrame> writeQueue = new ArrayDeque<>();
+        private final Queue<OutgoingFrame> parkedFrames = new ArrayDeque<>();   // À espera de espaço na fila de escrita
+        private final ReentrantLock writeLock = new ReentrantLock();     // Lock em vez de synchronized: não prende threads virtuais
+        private final long maxPendingBytes = GlobalConfig.getInstance().getMaxPendingWriteBytes();
+        private long pendingBytes = 0;      // Bytes na fila de escrita (sem os estacionados), guardado pelo writeLock
+        private boolean readsPaused = false;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(4);   // Primeiro só os 4 bytes que identificam o protocolo
+        private boolean binary = false;
+        private volatile int version = WireProtocol.VERSION;
+
+        NioConnection(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteHost = ((InetSocketAddress) channel.socket().getRemoteSocketAddress()).getAddress().getHostAddress();
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            if (!binary) {
+                if (readBuffer.hasRemaining()) {
+                    return;
+                }
+                int magic = readBuffer.getInt(0);
+                if (magic != WireProtocol.MAGIC) {
+                    if (magic != BulkProtocol.MAGIC) {
+                        System.out.println("Java serialization connection handed off to a blocking thread");
+                    }
+                    key.cancel();
+                    loop.handOffs.add(this);
+                    return;
+                }
+                binary = true;
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                return;
+            }
+            readFrames();
+        }
+
+        // O tamanho de cada frame é validado pelo comando antes de o corpo chegar (ver WireProtocol.maxFrameSize)
+        private void readFrames() throws IOException {
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 6) {
+                int start = readBuffer.position();
+                int length = readBuffer.getInt(start);
+                int frameVersion = readBuffer.get(start + 4) & 0xff;
+                int code = readBuffer.get(start + 5) & 0xff;
+                if (length < 2 || length > WireProtocol.maxFrameSize(code)) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (readBuffer.remaining() < 4 + length) {
+                    break;
+                }
+                readBuffer.position(start + 4 + length);
+                MessageWrapper message = WireProtocol.decodeFrame(frameVersion, code, readBuffer.array(), start + 6, length - 2);
+                if (message == null) {
+                    System.out.println("Unknown command ignored");
+                    continue;
+                }
+                version = WireProtocol.negotiatedVersion(message, frameVersion, version);
+                System.out.println("Server received message");
+                if (message.getCommand() == Command.WordSearchMessage) {
+                    // Com a fila cheia a pesquisa é descartada: quem a enviou deixa de esperar quando o prazo acabar
+                    if (!messageQueue.offer(() -> handleOnWorker(message))) {
+                        getForwardingStats().searchDropped();
+                    }
+                    continue;
+                }
+                if (!handleMessage(message, this, remoteHost)) {
+                    close();
+                    return;
+                }
+            }
+            readBuffer.compact();
+            resizeReadBuffer();
+        }
+
+        // Um frame grande não é reservado de uma vez: o buffer duplica só quando fica cheio, até ao tamanho do frame,
+        // e volta a READ_BUFFER_SIZE quando o frame foi tratado
+        private void resizeReadBuffer() {
+            int pending = readBuffer.position();
+            int needed = pending >= 4 ? 4 + readBuffer.getInt(0) : pending;
+            int capacity = readBuffer.capacity();
+            if (needed > capacity && !readBuffer.hasRemaining()) {
+                replaceReadBuffer((int) Math.min(needed, 2L * capacity));
+            } else if (capacity > READ_BUFFER_SIZE && Math.max(pending, needed) <= READ_BUFFER_SIZE) {
+                replaceReadBuffer(READ_BUFFER_SIZE);
+            }
+        }
+
+        private void replaceReadBuffer(int capacity) {
+            ByteBuffer replacement = ByteBuffer.allocate(capacity);
+            readBuffer.flip();
+            replacement.put(readBuffer);
+            readBuffer = replacement;
+        }
+
+        private void handleOnWorker(MessageWrapper message) {
+            try {
+                if (!handleMessage(message, this, remoteHost)) {
+                    close();
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Connection error: " + e.getMessage());
+                close();
+            }
+        }
+
+        // Pode ser chamado por qualquer thread e nunca espera: o frame é escrito pela thread de I/O
+        @Override
+        public void send(MessageWrapper message) throws IOException {
+            if (!enqueue(new OutgoingFrame(WireProtocol.encodeFrame(message, version), null))) {
+                throw new IOException("Connection closed");
+            }
+        }
+
+        // Resposta de um bloco: onWritten liberta o crédito do pedido (ver SocketServer.sendReply)
+        void sendReply(MessageWrapper message, Runnable onWritten) {
+            boolean queued = false;
+            try {
+                queued = enqueue(new OutgoingFrame(WireProtocol.encodeFrame(message, version), onWritten));
+            } catch (IOException e) {
+                System.out.println("Could not encode reply: " + e.getMessage());
+            }
+            if (!queued) {
+                onWritten.run();
+            }
+        }
+
+        // Sem espaço na fila de escrita o frame fica estacionado e a ligação deixa de ser lida
+        private boolean enqueue(OutgoingFrame outgoing) {
+            writeLock.lock();
+            try {
+                if (!key.isValid()) {
+                    return false;
+                }
+                if (parkedFrames.isEmpty() && fits(outgoing)) {
+                    queueForWrite(outgoing);
+                } else {
+                    parkedFrames.add(outgoing);
+                    readsPaused = true;
+                }
+                updateInterest();
+            } finally {
+                writeLock.unlock();
+            }
+            loop.selector.wakeup();
+            return true;
+        }
+
+        // Chamado com o writeLock; um frame maior do que o limite só entra com a fila vazia
+        private boolean fits(OutgoingFrame outgoing) {
+            return pendingBytes == 0 || pendingBytes + outgoing.frame.remaining() <= maxPendingBytes;
+        }
+
+        // Chamado com o writeLock
+        private void queueForWrite(OutgoingFrame outgoing) {
+            writeQueue.add(outgoing);
+            pendingBytes += outgoing.frame.remaining();
+            peakPendingWriteBytes.accumulateAndGet(pendingBytes, Math::max);
+        }
+
+        void onWritable() throws IOException {
+            List<Runnable> written = new ArrayList<>();
+            writeLock.lock();
+            try {
+                while (!writeQueue.isEmpty()) {
+                    OutgoingFrame outgoing = writeQueue.peek();
+                    int before = outgoing.frame.remaining();
+                    channel.write(outgoing.frame);
+                    pendingBytes -= before - outgoing.frame.remaining();
+                    if (outgoing.frame.hasRemaining()) {
+                        break;     // O socket está cheio: continua no próximo evento OP_WRITE
+                    }
+                    writeQueue.poll();
+                    if (outgoing.onWritten != null) {
+                        written.add(outgoing.onWritten);
+                    }
+                }
+                while (!parkedFrames.isEmpty() && fits(parkedFrames.peek())) {
+                    queueForWrite(parkedFrames.poll());
+                }
+                if (readsPaused && parkedFrames.isEmpty() && pendingBytes <= maxPendingBytes / 2) {
+                    readsPaused = false;       // O cliente leu metade: volta a aceitar pedidos
+                }
+                updateInterest();
+            } finally {
+                writeLock.unlock();
+            }
+            written.forEach(Runnable::run);     // Fora do lock: liberta os créditos dos pedidos
+        }
+
+        // Chamado com o writeLock
+        private void updateInterest() {
+            if (key.isValid()) {
+                key.interestOps((readsPaused ? 0 : SelectionKey.OP_READ) | (writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            }
+        }
+
+        void close() {
+            connectionClosed(this);
+            List<Runnable> dropped = new ArrayList<>();
+            writeLock.lock();
+            try {
+                Stream.concat(writeQueue.stream(), parkedFrames.stream())
+                        .map(outgoing -> outgoing.onWritten).filter(Objects::nonNull).forEach(dropped::add);
+                writeQueue.clear();
+                parkedFrames.clear();
+                pendingBytes = 0;
+                if (key != null) {
+                    key.cancel();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            dropped.forEach(Runnable::run);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Could not close connection: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package Server;
+
+import Communication.MessageSender;
+import Communication.MessageWrapper;
+import Communication.NodeThreads;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Respostas dos blocos de uma ligação bloqueante, escritas por uma thread da própria ligação
+// O worker que leu o bloco só deixa a resposta na fila: um nó que não lê as respostas prende esta thread, e não o
+// shard partilhado com outras ligações. A fila é limitada pelos créditos: cada resposta guarda o crédito do pedido
+// até sair da fila para ser escrita. É libertado antes da escrita bloqueante, para o pedido seguinte do cliente não
+// ser recusado: além dos créditos, cada ligação tem no máximo mais uma resposta a ser escrita
+public class ReplyWriter {
+
+    private static final long LINGER_MILLIS = 1000;     // A thread espera pela resposta seguinte antes de terminar
+
+    private static class Reply {
+        private final MessageWrapper message;
+        private final Runnable onSent;
+
+        Reply(MessageWrapper message, Runnable onSent) {
+            this.message = message;
+            this.onSent = onSent;
+        }
+    }
+
+    private final MessageSender transport;
+    private final String name;
+    private final Queue<Reply> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();     // Lock em vez de synchronized: não prende threads virtuais
+    private final Condition replyAdded = lock.newCondition();
+    private boolean writing = false;     // Há uma thread a esvaziar a fila
+    private boolean closed = false;
+
+    public ReplyWriter(MessageSender transport, String name) {
+        this.transport = transport;
+        this.name = name;
+    }
+
+    // Não bloqueia: onSent corre quando a resposta sai da fila para ser escrita, ou quando é descartada
+    public void send(MessageWrapper message, Runnable onSent) {
+        lock.lock();
+        try {
+            if (!closed) {
+                queue.add(new Reply(message, onSent));
+                if (writing) {
+                    replyAdded.signal();
+                    return;
+                }
+                writing = true;
+                NodeThreads.start("reply-writer-" + name, this::drain);     // Só enquanto há respostas por escrever
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        onSent.run();
+    }
+
+    // Um cliente que pede um bloco de cada vez deixa a fila vazia entre respostas: a thread fica LINGER_MILLIS
+    // à espera, em vez de ser criada uma thread por resposta
+    private void drain() {
+        while (true) {
+            Reply reply;
+            lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS);
+                while (queue.isEmpty() && !closed && remaining > 0) {
+                    remaining = replyAdded.awaitNanos(remaining);
+                }
+                reply = closed ? null : queue.poll();
+                if (reply == null) {
+                    writing = false;
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writing = false;
+                return;
+            } finally {
+                lock.unlock();
+            }
+            reply.onSent.run();
+            try {
+                transport.send(reply.message);
+            } catch (IOException e) {
+                System.out.println("Could not send reply to " + name + ": " + e.getMessage());
+                close();
+            }
+        }
+    }
+
+    // A ligação terminou: as respostas por escrever são descartadas
+    public void close() {
+        Queue<Reply> dropped;
+        lock.lock();
+        try {
+            closed = true;
+            dropped = new ArrayDeque<>(queue);
+            queue.clear();
+            replyAdded.signal();
+        } finally {
+            lock.unlock();
+        }
+        dropped.forEach(reply -> reply.onSent.run());
+    }
+}
@@ -0,0 +1,62 @@
+package Server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Créditos de pedidos de blocos de cada ligação, anunciados ao cliente no ConnectionAck (p2p.requestCredits)
+// Cada pedido ocupa um crédito desde que entra na fila até a resposta sair da fila da ligação para ser escrita
+// (ou ser cancelado); nas ligações bloqueantes pode haver mais uma resposta a ser escrita além dos créditos (ver ReplyWriter)
+// Um pedido sem crédito é recusado (RequestRefused) em vez de ficar em fila: um cliente que não respeita a janela
+// não consegue fazer crescer a fila dos workers nem as respostas por enviar
+public class RequestCredits {
+
+    private final int creditsPerConnection;
+    private final Map<Object, AtomicInteger> used = new ConcurrentHashMap<>();   // Ligação -> créditos ocupados
+    private final AtomicLong refused = new AtomicLong();
+
+    public RequestCredits(int creditsPerConnection) {
+        this.creditsPerConnection = Math.max(1, creditsPerConnection);
+    }
+
+    public int getCreditsPerConnection() {
+        return creditsPerConnection;
+    }
+
+    // Ocupa um crédito da ligação; devolve false (e conta a recusa) se já estão todos ocupados
+    public boolean tryAcquire(Object connection) {
+        AtomicInteger counter = used.computeIfAbsent(connection, c -> new AtomicInteger());
+        while (true) {
+            int current = counter.get();
+            if (current >= creditsPerConnection) {
+                refused.incrementAndGet();
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release(Object connection) {
+        AtomicInteger counter = used.get(connection);
+        if (counter != null) {
+            counter.decrementAndGet();
+        }
+    }
+
+    // A ligação terminou: os pedidos que ainda estão na fila libertam os créditos sem efeito
+    public void remove(Object connection) {
+        used.remove(connection);
+    }
+
+    public int getUsed(Object connection) {
+        AtomicInteger counter = used.get(connection);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public long getRefused() {
+        return refused.get();
+    }
+}
@@ -0,0 +1,87 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Contadores do reencaminhamento de pesquisas, para ajustar p2p.searchTtl e p2p.searchHopTimeout à rede
+// fan-out médio = mensagens enviadas / pesquisas reencaminhadas
+public class SearchForwardingStats {
+
+    private final AtomicLong received = new AtomicLong();       // Pesquisas recebidas de outros nós
+    private final AtomicLong duplicates = new AtomicLong();     // Cópias ignoradas (a pesquisa já tinha passado por aqui)
+    private final AtomicLong forwarded = new AtomicLong();      // Pesquisas reencaminhadas
+    private final AtomicLong fanOut = new AtomicLong();         // Mensagens enviadas ao reencaminhar
+    private final AtomicLong relayedResults = new AtomicLong(); // Resultados devolvidos pelo caminho inverso
+    private final AtomicLong expired = new AtomicLong();        // Pesquisas que chegaram com o ttl esgotado
+    private final AtomicLong dropped = new AtomicLong();        // Descartadas com a fila dos workers cheia (servidor NIO)
+
+    void queryReceived() {
+        received.incrementAndGet();
+    }
+
+    void duplicateDropped() {
+        duplicates.incrementAndGet();
+    }
+
+    void queryForwarded(int peers) {
+        forwarded.incrementAndGet();
+        fanOut.addAndGet(peers);
+    }
+
+    void resultRelayed() {
+        relayedResults.incrementAndGet();
+    }
+
+    void ttlExpired() {
+        expired.incrementAndGet();
+    }
+
+    void searchDropped() {
+        dropped.incrementAndGet();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getForwarded() {
+        return forwarded.get();
+    }
+
+    public long getFanOut() {
+        return fanOut.get();
+    }
+
+    public long getRelayedResults() {
+        return relayedResults.get();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public double getAverageFanOut() {
+        long queries = forwarded.get();
+        return queries == 0 ? 0 : (double) fanOut.get() / queries;
+    }
+
+    // Fração das pesquisas recebidas que eram duplicadas
+    public double getDuplicateRatio() {
+        long total = received.get();
+        return total == 0 ? 0 : (double) duplicates.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("received=%d duplicates=%d (%.0f%%) forwarded=%d fanOut=%d (avg %.1f) relayedResults=%d ttlExpired=%d dropped=%d",
+                getReceived(), getDuplicates(), getDuplicateRatio() * 100, getForwarded(), getFanOut(),
+                getAverageFanOut(), getRelayedResults(), getExpired(), getDropped());
+    }
+}
@@ -2,18 +2,37 @@ package Server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import Client.ClientManager;
+import Client.SearchQuery;
+import Communication.BinaryTransport;
+import Communication.BulkProtocol;
 import Communication.Command;
+import Communication.GlobalConfig;
+import Communication.MessageSender;
+import Communication.MessageTransport;
 import Communication.MessageWrapper;
+import Communication.NewConnectionAck;
 import Communication.NewConnectionRequest;
+import Communication.NodeThreads;
+import Communication.ObjectStreamTransport;
+import Communication.WireProtocol;
+import Download.BlockCodec;
+import Download.BlockCodecs;
 import Download.FileBlockAnswerMessage;
+import Download.FileBlockCancelMessage;
+import Download.FileBlockRangeRequestMessage;
 import Download.FileBlockRequestMessage;
+import Files.FileIndex;
 import Files.FileInfo;
 import Search.FileSearchResult;
+import Search.SearchReply;
 import Search.WordSearchMessage;
 
 public class SocketServer extends Thread {
@@ -22,159 +41,355 @@ public class SocketServer extends Thread {
     private int port;
     private boolean running = true;    // Para controlar o estado da comunicação do servidor
     boolean isPortBound = false;
-    private static final BlockingQueue<Runnable> taskQueue = new LinkedBlockingQueue<>();
-    private static volatile boolean workerRunning = true;
+    // Workers que servem os blocos, partilhados por todas as ligações (shard por ligação)
+    private final BlockServingPool servingPool;
+    private final Set<String> queuedBlockRequests = ConcurrentHashMap.newKeySet();   // "dtmUID:bloco" à espera de um worker, para poderem ser cancelados
+    private final RequestCredits requestCredits = new RequestCredits(GlobalConfig.getInstance().getRequestCredits());
+    private final Map<MessageSender, BlockCodec> connectionCodecs = new ConcurrentHashMap<>();   // Codec negociado em cada ligação
+    private final Map<MessageSender, ReplyWriter> replyWriters = new ConcurrentHashMap<>();   // Respostas dos blocos nas ligações bloqueantes
+    private ClientManager clientManager;    // Ligações deste nó a outros nós, usadas para reencaminhar pesquisas (null: não reencaminha)
+    private final SearchForwardingStats forwardingStats = new SearchForwardingStats();
 
     public SocketServer(int port) {
+        this(port, SharedServingPool.INSTANCE);
+    }
+
+    // Servidor com os seus próprios workers (ex.: um teste que precisa de saber quantos shards há)
+    public SocketServer(int port, BlockServingPool servingPool) {
         this.port = port;
+        this.servingPool = servingPool;
     }
 
-    // ***
-    static {
-        Thread workerThread = new Thread(() -> {
-            while (workerRunning) {
-                try {
-                    Runnable task = taskQueue.take();
-                    task.run();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                }
-            }
-        });
-        workerThread.start();
+    // Workers de p2p.servingWorkers, criados quando o primeiro servidor os usa
+    private static class SharedServingPool {
+        private static final BlockServingPool INSTANCE = new BlockServingPool(GlobalConfig.getInstance().getServingWorkers());
     }
 
     public synchronized void startServer() {
         try {
-            while (!isPortBound) {
-                try {
-                    serverSocket = new ServerSocket(port);    // Cria um novo ServerSocket na porta especificada
-                    isPortBound = true;
-                } catch (BindException e) {
-                    System.out.println("Port " + port + " is in use. Trying next port...");
-                    port++;
-                } catch (IOException e) {
-                    throw new RuntimeException("An unexpected error occurred while binding the port", e);
-                }
-            }
-            serverSocket.setReuseAddress(true);    // Permite que o endereço de socket criado possa ser reutilizado
-            System.out.println("Server listening on port " + port);
+            bind();
             while (running) {
                 Socket socket = serverSocket.accept();   // Aceita uma nova conexão de cliente
-                new Thread(() -> {
+                NodeThreads.start("connection-" + socket.getRemoteSocketAddress(), () -> {    // Uma thread (de plataforma ou virtual) por ligação
                     try {
                         System.out.println("Server accepted connection from " + socket.getRemoteSocketAddress() + " on thread" + Thread.currentThread().getName() );
                         handleClient(socket);
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
-                }).start();
+                });
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    // Associa o servidor à porta (ou à seguinte livre)
+    protected void bind() throws IOException {
+        while (!isPortBound) {
+            ServerSocketChannel serverChannel = null;
+            try {
+                // O ServerSocket é criado a partir de um canal para que os sockets aceites tenham SocketChannel (transferTo)
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(port));   // Associa o canal à porta especificada
+                serverSocket = serverChannel.socket();
+                isPortBound = true;
+            } catch (BindException e) {
+                serverChannel.close();
+                System.out.println("Port " + port + " is in use. Trying next port...");
+                port++;
+            } catch (IOException e) {
+                throw new RuntimeException("An unexpected error occurred while binding the port", e);
+            }
+        }
+        serverSocket.setReuseAddress(true);    // Permite que o endereço de socket criado possa ser reutilizado
+        System.out.println("Server listening on port " + port);
+    }
+
     public void handleClient(Socket socket) throws IOException {        //Metodo que lidar com o cliente
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());  // Cria um fluxo de saída para o cliente
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());    // Cria um fluxo de entrada do cliente
+        // Os primeiros bytes identificam o tipo de ligação: dados (bulk), protocolo binário ou serialização Java
+        byte[] preface = socket.getInputStream().readNBytes(4);
+        handleConnection(socket, preface);
+    }
 
-        while(running){     // Loop que continua enquanto o servidor está em execução
-            try {
-                MessageWrapper message = (MessageWrapper) in.readObject();
+    // Atende uma ligação bloqueante cujos primeiros bytes (preface) já foram lidos
+    protected void handleConnection(Socket socket, byte[] preface) throws IOException {
+        InputStream socketIn = socket.getInputStream();
+        int magic = preface.length == 4 ? ByteBuffer.wrap(preface).getInt() : 0;
+        if (magic == BulkProtocol.MAGIC && socket.getChannel() != null) {
+            new BulkDataHandler(socket.getChannel()).serve();
+            return;
+        }
+
+        MessageTransport transport;
+        if (magic == WireProtocol.MAGIC) {
+            transport = new BinaryTransport(socketIn, socket.getOutputStream());
+        } else {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());  // Cria um fluxo de saída para o cliente
+            ObjectInputStream in = new ObjectInputStream(new SequenceInputStream(new ByteArrayInputStream(preface), socketIn));    // Cria um fluxo de entrada do cliente
+            transport = new ObjectStreamTransport(out, in);
+        }
+
+        String remoteHost = socket.getInetAddress().getHostAddress();
+        replyWriters.put(transport, new ReplyWriter(transport, remoteHost));
+        try {
+            while (running) {     // Loop que continua enquanto o servidor está em execução
+                MessageWrapper message = transport.receive();
                 System.out.println("Server received message");
+                if (!handleMessage(message, transport, remoteHost)) {
+                    break;
+                }
+            }
+        } finally {
+            connectionClosed(transport);
+            socket.close();
+        }
+    }
 
-                switch (message.getCommand()) {
-
-                    case Command.WordSearchMessage:{    // Para a busca de palavras
-                        WordSearchMessage data =  (WordSearchMessage)  message.getData();    // Obtém os dados da mensagem
-                        List<FileInfo> searchResult =  data.search();      // Realiza a busca e obtém os resultados
-                        FileSearchResult[] result = new FileSearchResult[searchResult.size()];     // Cria um array para os resultados da busca
-                        for(int i = 0; i < searchResult.size(); i++){        // Loop pelos resultados da busca
-                            result[i] = new FileSearchResult(
-                                    data,
-                                    searchResult.get(i),
-                                    message.getServerIp() ,
-                                    message.getServerPort());       // Cria um resultado de busca para cada item encontrado
-                        }
-                        out.writeObject(new MessageWrapper(
-                                message.getServerIp(),
-                                message.getServerPort(),
-                                Command.FileSearchResult,
-                                result));    // Envia os resultados de volta para o cliente
-                        break; // Sai do switch
-                    }
-                    // ***
-                    case Command.DownloadMessage: {
-                        FileBlockRequestMessage data = (FileBlockRequestMessage) message.getData();
-                        // Adicionar à fila em vez de processar imediatamente
-                        taskQueue.add(() -> {
-                            try {
-                                FileBlockAnswerMessage result = new FileBlockAnswerMessage(
-                                        data.getFileHash(),
-                                        data.getBlock(),
-                                        data.getBlockID(),
-                                        data.getDtmUID(),
-                                        socket.getInetAddress().getHostAddress(),
-                                        this.port
-                                );
-                                synchronized (out) { // Garantir sincronização ao escrever
-                                    out.writeObject(new MessageWrapper(
-                                            message.getServerIp(),
-                                            message.getServerPort(),
-                                            Command.DownloadResult,
-                                            result
-                                    ));
-                                }
-                                System.out.println("Server sending block " + result.getBlockId());
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        });
-                        break;
-                    }
+    // Trata uma mensagem recebida; devolve false quando a ligação deve ser terminada
+    // As respostas são enviadas pelo transporte da ligação (bloqueante ou NIO)
+    protected boolean handleMessage(MessageWrapper message, MessageSender transport, String remoteHost) throws IOException {
+        switch (message.getCommand()) {
 
-                    case Command.Terminate:{   // Para terminar a comunicação
-                        socketStop();
-                        return;
-                    }
+            case Command.WordSearchMessage:{    // Para a busca de palavras
+                WordSearchMessage data =  (WordSearchMessage)  message.getData();    // Obtém os dados da mensagem
+                String queryId = data.getQueryId();
+                forwardingStats.queryReceived();
+                if (clientManager != null && queryId != null && !clientManager.markSearchSeen(queryId)) {
+                    // Já passou por este nó: resposta vazia e completa, para quem a enviou não ficar à espera
+                    forwardingStats.duplicateDropped();
+                    transport.send(new MessageWrapper(
+                            message.getServerIp(),
+                            message.getServerPort(),
+                            Command.FileSearchResult,
+                            new SearchReply(queryId, new FileSearchResult[0])));
+                    break;
+                }
+                List<FileInfo> searchResult =  data.search();      // Realiza a busca e obtém os resultados
+                FileSearchResult[] result = new FileSearchResult[searchResult.size()];     // Cria um array para os resultados da busca
+                for(int i = 0; i < searchResult.size(); i++){        // Loop pelos resultados da busca
+                    result[i] = new FileSearchResult(
+                            data,
+                            searchResult.get(i),
+                            message.getServerIp() ,
+                            message.getServerPort());       // Cria um resultado de busca para cada item encontrado
+                }
+                boolean forwarding = clientManager != null && queryId != null && data.getTtl() > 1;
+                if (!forwarding && queryId != null && data.getTtl() <= 1) {
+                    forwardingStats.ttlExpired();
+                }
+                // Um nó da versão original (serialização Java, pesquisa sem id) espera só o array de resultados
+                boolean legacy = queryId == null && transport instanceof ObjectStreamTransport;
+                transport.send(new MessageWrapper(
+                        message.getServerIp(),
+                        message.getServerPort(),
+                        Command.FileSearchResult,
+                        legacy ? result : new SearchReply(queryId, result, !forwarding)));    // Envia os resultados de volta com o id da pesquisa
+                if (forwarding) {
+                    forwardSearch(data, message, transport);
+                }
+                break; // Sai do switch
+            }
+            // ***
+            case Command.DownloadMessage: {
+                serveBlock((FileBlockRequestMessage) message.getData(), message, transport, remoteHost);
+                break;
+            }
 
-                    case Command.String:{     // Para tratamento de Strings
-                        out.writeObject(message);
-                        break;
-                    }
+            case Command.DownloadRange: {
+                // Cada bloco do intervalo entra na fila como um pedido normal: as respostas saem pela ordem
+                // do intervalo (mesmo shard) e cada uma pode ser cancelada
+                FileBlockRangeRequestMessage range = (FileBlockRangeRequestMessage) message.getData();
+                for (FileBlockRequestMessage data : range.toRequests()) {
+                    serveBlock(data, message, transport, remoteHost);
+                }
+                break;
+            }
 
-                    // ***
-                    case ConnectionRequest: {
-                        // Processa pedido de conexão
-                        NewConnectionRequest request = (NewConnectionRequest) message.getData();
-                        System.out.println("Recebido pedido de conexão de " + request.getIp() + ":" + request.getPort());
-
-                        // Responde com ACK
-                        out.writeObject(new MessageWrapper(
-                                message.getServerIp(),
-                                message.getServerPort(),
-                                Command.ConnectionAck,
-                                null
-                        ));
-                        break;
-                    }
+            case Command.CancelDownload: {
+                FileBlockCancelMessage cancel = (FileBlockCancelMessage) message.getData();
+                queuedBlockRequests.remove(cancel.getDtmUID() + ":" + cancel.getBlockId());
+                break;
+            }
 
-                    default:{      // Para comandos desconhecidos
-                        System.out.println("Unknown command");
-                        break;
-                    }
+            case Command.Terminate:{   // Para terminar a comunicação (apenas esta ligação, o servidor continua a aceitar outras)
+                return false;
+            }
+
+            case Command.String:{     // Para tratamento de Strings
+                transport.send(message);
+                break;
+            }
+
+            // ***
+            case ConnectionRequest: {
+                // Processa pedido de conexão
+                NewConnectionRequest request = (NewConnectionRequest) message.getData();
+                System.out.println("Recebido pedido de conexão de " + request.getIp() + ":" + request.getPort());
+
+                BlockCodec codec = BlockCodecs.choose(request.getCodecs());
+                if (codec != null) {
+                    connectionCodecs.put(transport, codec);
+                }
+                // Responde com ACK (no protocolo binário leva a versão escolhida), o codec dos blocos e os créditos
+                transport.send(new MessageWrapper(
+                        message.getServerIp(),
+                        message.getServerPort(),
+                        Command.ConnectionAck,
+                        request.getCodecs() == null ? null : new NewConnectionAck(WireProtocol.VERSION,
+                                codec == null ? null : codec.getName(), requestCredits.getCreditsPerConnection())
+                ));
+                break;
+            }
+
+            default:{      // Para comandos desconhecidos
+                System.out.println("Unknown command");
+                break;
+            }
+        }
+        return true;
+    }
+
+    // Só entra na fila com um crédito da ligação livre (ver RequestCredits)
+    // O worker nunca espera pelo envio (ver sendReply): o crédito só é libertado quando a resposta sai da fila da
+    // ligação, por isso um cliente que não lê as respostas fica sem créditos e os pedidos seguintes são recusados
+    private void serveBlock(FileBlockRequestMessage data, MessageWrapper message, MessageSender transport, String remoteHost) throws IOException {
+        if (!requestCredits.tryAcquire(transport)) {
+            transport.send(new MessageWrapper(
+                    message.getServerIp(),
+                    message.getServerPort(),
+                    Command.RequestRefused,
+                    new FileBlockCancelMessage(data.getDtmUID(), data.getBlockID())));
+            return;
+        }
+        String requestKey = data.getDtmUID() + ":" + data.getBlockID();
+        queuedBlockRequests.add(requestKey);
+        // Adicionar à fila do shard desta ligação em vez de processar imediatamente
+        servingPool.submit(transport, () -> {
+            FileBlockAnswerMessage result = null;
+            try {
+                result = readBlock(data, transport, remoteHost, requestKey);
+            } finally {
+                if (result == null) {
+                    requestCredits.release(transport);
                 }
+            }
+            if (result == null) {
+                return;
+            }
+            sendReply(transport, new MessageWrapper(
+                    message.getServerIp(),
+                    message.getServerPort(),
+                    Command.DownloadResult,
+                    result
+            ), () -> requestCredits.release(transport));
+            System.out.println("Server sending block " + result.getBlockId());
+        });
+    }
+
+    // Envia a resposta de um bloco sem bloquear o worker; onSent corre quando a resposta sai da fila da ligação
+    // para ser escrita (ou é descartada)
+    // Nas ligações bloqueantes a escrita é feita por uma thread da ligação (ver ReplyWriter)
+    protected void sendReply(MessageSender transport, MessageWrapper reply, Runnable onSent) {
+        ReplyWriter writer = replyWriters.get(transport);
+        if (writer != null) {
+            writer.send(reply, onSent);
+        } else {
+            onSent.run();     // A ligação já terminou
+        }
+    }
+
+    // Corre no worker: lê o bloco e comprime-o se a ligação negociou um codec; null se já não é para enviar
+    private FileBlockAnswerMessage readBlock(FileBlockRequestMessage data, MessageSender transport, String remoteHost, String requestKey) {
+        if (!queuedBlockRequests.remove(requestKey)) {
+            return null;     // Cancelado enquanto esperava na fila
+        }
+        File file = data.findFile();
+        FileInfo info = file == null ? null : FileIndex.getInstance().getFileInfo(file);     // Um acesso ao índice por bloco
+        byte[] block = data.getBlock(file, info);
+        if (block == null) {
+            System.out.println("Block " + data.getBlockID() + " of " + data.getFileHash() + " is not shared here");
+            return null;     // O cliente pede o bloco a outro nó quando o prazo acabar
+        }
+        return BlockCodecs.compress(new FileBlockAnswerMessage(
+                data.getFileHash(),
+                block,
+                data.getBlockID(),
+                data.getDtmUID(),
+                remoteHost,
+                this.port,
+                data.getProof(info)
+        ), connectionCodecs.get(transport), remoteHost);
+    }
 
-            } catch (IOException | ClassNotFoundException e) {
-                throw new RuntimeException(e);
+    // Reencaminha a pesquisa, com menos um salto, aos nós a que este nó está ligado
+    // Os resultados voltam pelo caminho inverso: cada um é enviado logo, como resposta parcial, pela ligação
+    // de onde veio a pesquisa; a resposta completa (vazia) segue quando os vizinhos responderam ou o prazo acabou
+    // O prazo diminui a cada salto, para cada nó terminar antes do nó anterior
+    private void forwardSearch(WordSearchMessage data, MessageWrapper message, MessageSender transport) {
+        WordSearchMessage forwarded = data.forward();
+        long timeoutMillis = (long) GlobalConfig.getInstance().getSearchHopTimeout() * forwarded.getTtl();
+        SearchQuery query = clientManager.forwardSearch(forwarded, timeoutMillis, result -> {
+            if (sendSearchReply(message, transport, new SearchReply(data.getQueryId(), new FileSearchResult[]{result}, false))) {
+                forwardingStats.resultRelayed();
             }
+        });
+        forwardingStats.queryForwarded(query.getPeerCount());
+        query.getCompletion().whenComplete((results, error) ->
+                sendSearchReply(message, transport, new SearchReply(data.getQueryId(), new FileSearchResult[0], true)));
+        System.out.println("Search " + data.getQueryId() + " forwarded to " + query.getPeerCount() + " nodes (" + forwardingStats + ")");
+    }
+
+    private boolean sendSearchReply(MessageWrapper message, MessageSender transport, SearchReply reply) {
+        try {
+            transport.send(new MessageWrapper(message.getServerIp(), message.getServerPort(), Command.FileSearchResult, reply));
+            return true;
+        } catch (IOException e) {
+            return false;     // Quem enviou a pesquisa já fechou a ligação
+        }
+    }
+
+    // Sem ClientManager o nó só responde com os seus ficheiros
+    public void setClientManager(ClientManager clientManager) {
+        this.clientManager = clientManager;
+    }
+
+    public SearchForwardingStats getForwardingStats() {
+        return forwardingStats;
+    }
+
+    // Chamado quando uma ligação de mensagens termina
+    protected void connectionClosed(MessageSender transport) {
+        connectionCodecs.remove(transport);
+        requestCredits.remove(transport);
+        ReplyWriter writer = replyWriters.remove(transport);
+        if (writer != null) {
+            writer.close();
         }
     }
 
-    public static void stopWorker() {
-        workerRunning = false;
+    public RequestCredits getRequestCredits() {
+        return requestCredits;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    protected boolean isRunning() {
+        return running;
+    }
+
+    protected ServerSocket getServerSocket() {
+        return serverSocket;
+    }
+
+    public void stopWorker() {
+        servingPool.shutdown();
+    }
+
+    public BlockServingPool getServingPool() {
+        return servingPool;
     }
 
     public synchronized void socketStop() throws IOException {
@@ -0,0 +1,122 @@
+package Files;
+
+import Communication.GlobalConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Ficheiros com mais de 4 GB: posições e tamanhos que não cabem num int
+// Os ficheiros são esparsos (setLength), por isso o teste quase não ocupa disco
+class LargeFileTest {
+
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final long FILE_SIZE = 5L * 1024 * 1024 * 1024 + 12345;     // O último bloco fica incompleto
+
+    private Path dir;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        // Sem @TempDir: os ficheiros abertos pelo BlockReader são fechados antes de apagar o diretório
+        dir = Files.createTempDirectory("p2p-large");
+        GlobalConfig.getInstance().setDefaultPath(dir.toString() + File.separator);
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                BlockReader.getInstance().invalidate(path.toFile().getAbsolutePath());
+                path.toFile().delete();
+            });
+        }
+    }
+
+    @Test
+    void countsBlocksPastFourGigabytes() {
+        FileInfo info = new FileInfo("large.bin", "00", FILE_SIZE, BLOCK_SIZE);
+        assertEquals(327681, info.blockNumber);
+        assertEquals(FILE_SIZE, info.fileSize);
+
+        FileBlockInfo last = info.getBlock(info.blockNumber - 1);
+        assertEquals(5L * 1024 * 1024 * 1024, last.startByte);
+        assertEquals(FILE_SIZE, last.endByte);
+        assertEquals(12345, last.getLength());
+        assertEquals(12345, info.getBlockLength(info.blockNumber - 1));
+
+        assertEquals(1, FileInfo.countBlocks(1, BLOCK_SIZE));
+        assertEquals(Integer.MAX_VALUE, FileInfo.countBlocks((long) Integer.MAX_VALUE * BLOCK_SIZE, BLOCK_SIZE));
+        assertThrows(IllegalArgumentException.class, () -> FileInfo.countBlocks((long) Integer.MAX_VALUE * BLOCK_SIZE + 1, BLOCK_SIZE));
+    }
+
+    @Test
+    void readsBlocksPastIntegerMaxValue() throws IOException {
+        File file = dir.resolve("large.bin").toFile();
+        long position = (long) Integer.MAX_VALUE + 1000;
+        byte[] data = randomBytes(BLOCK_SIZE, 1);
+        byte[] tail = randomBytes(12345, 2);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(FILE_SIZE);
+            raf.seek(position);
+            raf.write(data);
+            raf.seek(FILE_SIZE - tail.length);
+            raf.write(tail);
+        }
+
+        BlockReader reader = BlockReader.getInstance();
+        assertArrayEquals(data, reader.read(file, position, data.length));
+        assertArrayEquals(tail, reader.read(file, FILE_SIZE - tail.length, tail.length));
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        reader.transferTo(file, FILE_SIZE - tail.length, tail.length, Channels.newChannel(sent));
+        assertArrayEquals(tail, sent.toByteArray());
+
+        assertThrows(IOException.class, () -> reader.read(file, FILE_SIZE - 10, 20));
+    }
+
+    @Test
+    void writesAndResumesAtTheEndOfTheFile() throws IOException {
+        FileInfo info = new FileInfo("large.bin", "00", FILE_SIZE, BLOCK_SIZE);
+        int lastBlock = info.blockNumber - 1;
+        FileBlockInfo last = info.getBlock(lastBlock);
+        byte[] data = randomBytes(last.getLength(), 3);
+
+        PartialDownload download = new PartialDownload(info);
+        assertEquals(FILE_SIZE, dir.resolve("large.bin" + GlobalConfig.PART_SUFFIX).toFile().length());
+        download.write(last.startByte, data);
+        download.markCompleted(lastBlock);
+        download.suspend();
+
+        PartialDownload resumed = new PartialDownload(info);
+        assertTrue(resumed.isResumed());
+        assertEquals(1, resumed.getCompletedBlocks().cardinality());
+        assertTrue(resumed.getCompletedBlocks().get(lastBlock));
+        assertArrayEquals(data, resumed.read(last.startByte, last.getLength()));
+        resumed.complete();
+
+        File output = resumed.getOutputFile();
+        assertEquals(FILE_SIZE, output.length());
+        assertArrayEquals(data, BlockReader.getInstance().read(output, last.startByte, last.getLength()));
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
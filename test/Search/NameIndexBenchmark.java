@@ -0,0 +1,84 @@
+package Search;
+
+import Files.FileInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Pesquisa pelo índice de trigramas (NameIndex) contra a comparação com todos os nomes, como antes do índice
+// As duas devolvem o mesmo resultado (ordenado pelo nome, com as ocorrências): só muda a escolha dos candidatos
+// Só corre com -Dp2p.benchmarks=true; -Dbench.names muda o número de ficheiros indexados
+@EnabledIfSystemProperty(named = "p2p.benchmarks", matches = "true")
+class NameIndexBenchmark {
+
+    private static final int NAMES = Integer.getInteger("bench.names", 100_000);
+    private static final int ROUNDS = 20;
+    private static final String[] WORDS = {"report", "holiday", "backup", "invoice", "photo", "video", "music", "db",
+            "dump", "image", "vm", "ubuntu", "windows", "final", "draft", "2023", "2024", "copy"};
+    private static final String[] QUERIES = {"ubuntu", "Holiday 2024", "12345", "zzz", "db dump", "a"};
+
+    @Test
+    void compareIndexWithScan() {
+        Random random = new Random(1);
+        NameIndex index = new NameIndex();
+        FileInfo[] files = new FileInfo[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + "_" + WORDS[random.nextInt(WORDS.length)] + "_"
+                    + WORDS[random.nextInt(WORDS.length)] + "_" + i + ".bin";
+            files[i] = new FileInfo(name, "h" + i, 1, 16384);
+            index.add("/share/" + name, files[i]);
+        }
+
+        for (int pass = 0; pass < 2; pass++) {     // A primeira passagem aquece a JVM
+            for (String query : QUERIES) {
+                Map<FileInfo, Integer> indexed = null;
+                long start = System.nanoTime();
+                for (int r = 0; r < ROUNDS; r++) {
+                    indexed = index.search(query);
+                }
+                double indexMillis = (System.nanoTime() - start) / 1e6 / ROUNDS;
+
+                Map<FileInfo, Integer> scanned = null;
+                start = System.nanoTime();
+                for (int r = 0; r < ROUNDS; r++) {
+                    scanned = scan(files, query);
+                }
+                double scanMillis = (System.nanoTime() - start) / 1e6 / ROUNDS;
+
+                if (pass == 1) {
+                    System.out.printf("BENCH names=%d query=%-14s hits=%-6d index=%.2fms scan=%.2fms%n",
+                            NAMES, "\"" + query + "\"", indexed.size(), indexMillis, scanMillis);
+                }
+                assertEquals(scanned, indexed);
+            }
+        }
+    }
+
+    // Todos os termos têm de aparecer no nome, sem distinguir maiúsculas
+    private static Map<FileInfo, Integer> scan(FileInfo[] files, String query) {
+        Map<FileInfo, Integer> result = new TreeMap<>();
+        String[] terms = query.toLowerCase(Locale.ROOT).trim().split("\\s+");
+        for (FileInfo info : files) {
+            String folded = info.name.toLowerCase(Locale.ROOT);
+            int total = 0;
+            for (String term : terms) {
+                int occurrences = NameIndex.countOccurrences(folded, term);
+                if (occurrences == 0) {
+                    total = 0;
+                    break;
+                }
+                total += occurrences;
+            }
+            if (total > 0) {
+                result.put(info, total);
+            }
+        }
+        return result;
+    }
+}
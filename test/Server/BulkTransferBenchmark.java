@@ -0,0 +1,77 @@
+package Server;
+
+import Client.BulkDataClient;
+import Communication.GlobalConfig;
+import Files.FileInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+// Débito das ligações de dados (p2p.bulkTransfer) no loopback, por tamanho de bloco e unidade de transferência
+// Um cliente pede todos os blocos do ficheiro, um de cada vez, como uma thread de download
+// Só corre com -Dp2p.benchmarks=true; -Dbench.fileMb muda o tamanho do ficheiro
+@EnabledIfSystemProperty(named = "p2p.benchmarks", matches = "true")
+class BulkTransferBenchmark {
+
+    private static final int FILE_MB = Integer.getInteger("bench.fileMb", 64);
+    private static final int ROUNDS = 3;
+    private static final int[] BLOCK_SIZES = {64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024, 16 * 1024 * 1024};
+    private static final int[] TRANSFER_UNITS = {64 * 1024, 256 * 1024, 1024 * 1024};
+
+    @Test
+    void compareBlockSizesAndTransferUnits() throws Exception {
+        GlobalConfig gc = GlobalConfig.getInstance();
+        int previousMinBlockSize = gc.getMinBlockSize();
+        int previousMaxBlockSize = gc.getMaxBlockSize();
+        int previousTransferUnit = gc.getBulkTransferUnit();
+        SocketServer server = TestServers.start(new SocketServer(7700));
+        try (TestServers.Share share = new TestServers.Share("p2p-bulk-bench")) {
+            for (int blockSize : BLOCK_SIZES) {
+                gc.setMinBlockSize(blockSize);     // O tamanho dos blocos é escolhido ao indexar o ficheiro
+                gc.setMaxBlockSize(blockSize);
+                String name = "bulk-" + blockSize + ".bin";
+                FileInfo info = share.addRandomFile(name, FILE_MB * 1024 * 1024, 7);
+                assertEquals(blockSize, info.blocksize);
+                for (int transferUnit : TRANSFER_UNITS) {
+                    gc.setBulkTransferUnit(transferUnit);     // Os dois lados no mesmo processo: a unidade negociada é esta
+                    run(server.getPort(), info, transferUnit);
+                }
+                share.delete(name);
+            }
+        } finally {
+            server.getServerSocket().close();
+            gc.setMinBlockSize(previousMinBlockSize);
+            gc.setMaxBlockSize(previousMaxBlockSize);
+            gc.setBulkTransferUnit(previousTransferUnit);
+        }
+    }
+
+    private void run(int port, FileInfo info, int transferUnit) throws IOException {
+        BulkDataClient client = new BulkDataClient("127.0.0.1", port);
+        try {
+            assertEquals(transferUnit, client.getTransferUnit());
+            byte[] block = new byte[info.blocksize];
+            double best = Double.MAX_VALUE;
+            for (int round = 0; round <= ROUNDS; round++) {     // A ronda 0 aquece a JVM e a cache de páginas
+                long start = System.nanoTime();
+                for (int blockId = 0; blockId < info.blockNumber; blockId++) {
+                    ByteBuffer target = ByteBuffer.wrap(block, 0, info.getBlockLength(blockId));
+                    assertNotNull(client.receiveBlock(info.filehash, blockId, target));
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                if (round > 0) {
+                    best = Math.min(best, seconds);
+                }
+            }
+            System.out.printf("BENCH blockSize=%-5s transferUnit=%-5s blocks=%-5d throughput=%.0fMB/s%n",
+                    info.blocksize / 1024 + "K", transferUnit / 1024 + "K", info.blockNumber, info.fileSize / 1048576.0 / best);
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package Server;
+
+import Communication.BinaryTransport;
+import Communication.Command;
+import Communication.GlobalConfig;
+import Communication.MessageWrapper;
+import Communication.NewConnectionRequest;
+import Communication.NodeThreads;
+import Download.FileBlockAnswerMessage;
+import Download.FileBlockRangeRequestMessage;
+import Download.FileBlockRequestMessage;
+import Files.FileInfo;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Um cliente que envia pedidos de intervalos sem parar e nunca lê as respostas não pode atrasar as outras ligações:
+// os workers dos blocos são partilhados (aqui um só shard) e nunca esperam pelo envio de uma resposta
+class SlowReaderTest {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_WRITE_BYTES = 512 * 1024;
+
+    private static int previousCredits;
+    private static int previousMaxPendingWriteBytes;
+    private static int previousMinBlockSize;
+    private static int previousMaxBlockSize;
+    private static TestServers.Share share;
+    private static FileInfo info;
+
+    @BeforeAll
+    static void createFile() throws IOException {
+        GlobalConfig gc = GlobalConfig.getInstance();
+        previousCredits = gc.getRequestCredits();
+        previousMaxPendingWriteBytes = gc.getMaxPendingWriteBytes();
+        previousMinBlockSize = gc.getMinBlockSize();
+        previousMaxBlockSize = gc.getMaxBlockSize();
+        gc.setRequestCredits(8);
+        gc.setMaxPendingWriteBytes(MAX_PENDING_WRITE_BYTES);
+        gc.setMinBlockSize(BLOCK_SIZE);
+        gc.setMaxBlockSize(BLOCK_SIZE);
+        share = new TestServers.Share("p2p-slow-reader");
+        info = share.addRandomFile("shared.bin", 4 * 1024 * 1024, 3);
+        assertEquals(64, info.blockNumber);
+    }
+
+    @AfterAll
+    static void restoreConfig() throws IOException {
+        GlobalConfig gc = GlobalConfig.getInstance();
+        gc.setRequestCredits(previousCredits);
+        gc.setMaxPendingWriteBytes(previousMaxPendingWriteBytes);
+        gc.setMinBlockSize(previousMinBlockSize);
+        gc.setMaxBlockSize(previousMaxBlockSize);
+        share.close();
+    }
+
+    @Test
+    void nioServerKeepsServingOtherConnections() throws Exception {
+        BlockServingPool pool = new BlockServingPool(1);     // Todas as ligações no mesmo shard
+        NioSocketServer server = TestServers.start(new NioSocketServer(7800, pool));
+        try {
+            floodAndCheck(server);
+            assertTrue(server.getPeakPendingWriteBytes() > 0);
+            assertTrue(server.getPeakPendingWriteBytes() <= MAX_PENDING_WRITE_BYTES,
+                    "pending write bytes reached " + server.getPeakPendingWriteBytes());
+        } finally {
+            server.getServerSocket().close();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void threadServerKeepsServingOtherConnections() throws Exception {
+        BlockServingPool pool = new BlockServingPool(1);
+        SocketServer server = TestServers.start(new SocketServer(7850, pool));
+        try {
+            floodAndCheck(server);
+        } finally {
+            server.getServerSocket().close();
+            pool.shutdown();
+        }
+    }
+
+    private void floodAndCheck(SocketServer server) throws Exception {
+        Socket flooder = new Socket();
+        flooder.setReceiveBufferSize(4096);     // As respostas acumulam-se no servidor quase de imediato
+        flooder.connect(new InetSocketAddress("127.0.0.1", server.getPort()));
+        BinaryTransport flood = handshake(flooder);
+        NodeThreads.start("flooder", () -> {
+            try {
+                for (int i = 0; ; i++) {     // Bloqueia quando o servidor deixa de ler a ligação
+                    flood.send(new MessageWrapper("127.0.0.1", 1, Command.DownloadRange,
+                            new FileBlockRangeRequestMessage(info.filehash, "flood-" + i, 0, info.blockNumber)));
+                }
+            } catch (IOException e) {
+                // A ligação foi fechada no fim do teste
+            }
+        });
+        Thread.sleep(1000);
+
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            socket.setSoTimeout(10000);     // Um worker preso pelo flooder faria o receive expirar
+            BinaryTransport client = handshake(socket);
+            for (int blockId = 0; blockId < info.blockNumber; blockId++) {
+                client.send(new MessageWrapper("127.0.0.1", 1, Command.DownloadMessage,
+                        new FileBlockRequestMessage(null, info.name, info.filehash, "reader", blockId)));
+                MessageWrapper answer = client.receive();
+                assertEquals(Command.DownloadResult, answer.getCommand());
+                assertEquals(blockId, ((FileBlockAnswerMessage) answer.getData()).getBlockId());
+            }
+        } finally {
+            flooder.close();
+        }
+        assertTrue(server.getRequestCredits().getRefused() > 0, "the flooder should have run out of credits");
+    }
+
+    private static BinaryTransport handshake(Socket socket) throws IOException {
+        BinaryTransport transport = new BinaryTransport(socket.getInputStream(), socket.getOutputStream());
+        transport.writeMagic();
+        transport.send(new MessageWrapper("127.0.0.1", 1, Command.ConnectionRequest,
+                new NewConnectionRequest("127.0.0.1", 1, new String[0])));
+        assertEquals(Command.ConnectionAck, transport.receive().getCommand());
+        return transport;
+    }
+}
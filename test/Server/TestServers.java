@@ -0,0 +1,80 @@
+package Server;
+
+import Communication.GlobalConfig;
+import Files.BlockReader;
+import Files.FileIndex;
+import Files.FileInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Servidores e diretórios partilhados para os testes e benchmarks deste pacote
+final class TestServers {
+
+    private TestServers() {
+    }
+
+    // Como no Node: o accept corre numa thread de plataforma (startServer é synchronized e prenderia a thread de suporte)
+    // Para parar: server.getServerSocket().close() (socketStop espera pelo monitor de startServer)
+    static <T extends SocketServer> T start(T server) throws IOException {
+        server.bind();
+        Thread accept = new Thread(() -> {
+            try {
+                server.startServer();
+            } catch (RuntimeException e) {
+                // Fechar o ServerSocket termina o accept
+            }
+        }, "test-server-" + server.getPort());
+        accept.setDaemon(true);
+        accept.start();
+        return server;
+    }
+
+    // Diretório temporário usado como p2p.defaultPath até ao close, que repõe o anterior e apaga o diretório
+    // Sem @TempDir: os ficheiros abertos pelo BlockReader têm de ser fechados antes de apagar, e um ficheiro que não
+    // se consiga apagar (ex.: o index.ser que o FileIndex volte a escrever) não deve fazer falhar o teste
+    static final class Share implements AutoCloseable {
+
+        private final Path dir;
+        private final String previousPath;
+
+        Share(String prefix) throws IOException {
+            GlobalConfig gc = GlobalConfig.getInstance();
+            dir = Files.createTempDirectory(prefix);
+            previousPath = gc.getDefaultPath();
+            gc.setDefaultPath(dir.toString() + File.separator);
+        }
+
+        // Escreve um ficheiro com bytes aleatórios (sempre os mesmos para a mesma seed) e indexa-o
+        FileInfo addRandomFile(String name, int size, long seed) throws IOException {
+            byte[] data = new byte[size];
+            new Random(seed).nextBytes(data);
+            File file = dir.resolve(name).toFile();
+            Files.write(file.toPath(), data);
+            return FileIndex.getInstance().getFileInfo(file);
+        }
+
+        // Apaga um ficheiro antes do close (ex.: para não acumular ficheiros grandes)
+        void delete(String name) {
+            File file = dir.resolve(name).toFile();
+            BlockReader.getInstance().invalidate(file.getAbsolutePath());
+            file.delete();
+        }
+
+        @Override
+        public void close() throws IOException {
+            GlobalConfig.getInstance().setDefaultPath(previousPath);
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                    BlockReader.getInstance().invalidate(path.toFile().getAbsolutePath());
+                    path.toFile().delete();
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package Server;
+
+import Client.SocketClient;
+import Communication.Command;
+import Communication.GlobalConfig;
+import Communication.MessageWrapper;
+import Communication.NodeThreads;
+import Download.FileBlockRequestMessage;
+import Files.FileInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Threads de plataforma contra threads virtuais (p2p.virtualThreads) com muitas ligações em simultâneo
+// Cada ligação faz o handshake e pede blocos um a um: mede o tempo total, as threads de plataforma e o heap
+// Só corre com -Dp2p.benchmarks=true; -Dbench.connections e -Dbench.requests mudam a carga
+@EnabledIfSystemProperty(named = "p2p.benchmarks", matches = "true")
+class ThreadModeBenchmark {
+
+    private static final int CONNECTIONS = Integer.getInteger("bench.connections", 1000);
+    private static final int REQUESTS = Integer.getInteger("bench.requests", 20);
+
+    @Test
+    void compareThreadModes() throws Exception {
+        GlobalConfig gc = GlobalConfig.getInstance();
+        boolean previousVirtual = gc.isVirtualThreads();
+        try (TestServers.Share share = new TestServers.Share("p2p-bench")) {
+            FileInfo info = share.addRandomFile("bench.bin", 1024 * 1024, 7);
+            int port = 7600;
+            for (boolean virtual : new boolean[]{false, true, false, true}) {     // Cada modo duas vezes: a primeira aquece a JVM
+                gc.setVirtualThreads(virtual);
+                // As threads de cada ligação seguem o modo atual; os workers dos blocos (partilhados) ficam no modo do primeiro servidor
+                SocketServer server = TestServers.start(new SocketServer(port));
+                port = server.getPort() + 1;
+                run(virtual ? "virtual" : "platform", server.getPort(), info);
+                server.getServerSocket().close();     // Termina o accept (socketStop espera pelo monitor de startServer)
+            }
+        } finally {
+            gc.setVirtualThreads(previousVirtual);
+        }
+    }
+
+    private void run(String mode, int port, FileInfo info) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        AtomicInteger received = new AtomicInteger();
+        java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(CONNECTIONS);
+        long start = System.nanoTime();
+        for (int c = 0; c < CONNECTIONS; c++) {
+            int connection = c;
+            NodeThreads.start("bench-client-" + c, () -> {
+                try {
+                    SocketClient client = new SocketClient("127.0.0.1", port);
+                    client.startSocket();
+                    for (int r = 0; r < REQUESTS; r++) {
+                        int blockId = (connection + r) % info.blockNumber;
+                        client.sendObject(Command.DownloadMessage, new FileBlockRequestMessage(null, info.name,
+                                info.filehash, "bench-" + connection, blockId));
+                        MessageWrapper answer = client.receiveObject();
+                        if (answer.getCommand() == Command.DownloadResult) {
+                            received.incrementAndGet();
+                        }
+                    }
+                    client.stopConnection();
+                } catch (Exception e) {
+                    System.out.println("Benchmark client failed: " + e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.gc();
+        long heapMb = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) >> 20;
+        System.out.printf("BENCH threads=%-8s connections=%d blocks=%d time=%.2fs blocks/s=%.0f peakPlatformThreads=%d heapAfterGc=%dMB%n",
+                mode, CONNECTIONS, received.get(), seconds, received.get() / seconds, threads.getPeakThreadCount(), heapMb);
+        assertEquals(CONNECTIONS * REQUESTS, received.get());
+    }
+}